@@ -0,0 +1,153 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * An image input stream over a byte buffer (heap or direct).  All data is
+ * in the buffer, so seeking is constant time, and reads are bulk copies
+ * with no size limit.  Each stream has its own view of the buffer, so any
+ * number of streams can read the same buffer without locking.  Closing the
+ * stream does not affect the buffer.
+ *
+ * @author Douglas Lau
+ */
+public class ByteBufferImageInputStream extends ImageInputStreamImpl {
+
+	/** Initial buffer size when reading a stream of unknown length */
+	static private final int INITIAL_SZ = 16 * 1024;
+
+	/** Read an input stream into a heap buffer.  Data is read straight
+	 * into the buffer's array, which is only reallocated if the stream
+	 * is longer than expected.  The expected length is not trusted
+	 * beyond the maximum tile size, so a bad length can't exhaust the
+	 * heap.
+	 * @param is Input stream to read.
+	 * @param len Expected length (bytes), or -1 if unknown.
+	 * @return Buffer with position 0 and limit at end of data.
+	 * @throws IOException if the stream is longer than the maximum tile
+	 *         size (TilePack.MAX_DATA). */
+	static public ByteBuffer readFully(InputStream is, long len)
+		throws IOException
+	{
+		if (len > TilePack.MAX_DATA)
+			throw new IOException("Stream too long: " + len);
+		int sz = (len >= 0) ? (int) len : INITIAL_SZ;
+		byte[] buf = new byte[Math.max(sz, 1)];
+		int n = 0;
+		while (true) {
+			if (n == buf.length) {
+				// Check for end before growing an exact buffer
+				int b = is.read();
+				if (b < 0)
+					break;
+				buf = grow(buf);
+				buf[n++] = (byte) b;
+			}
+			int n_bytes = is.read(buf, n, buf.length - n);
+			if (n_bytes < 0)
+				break;
+			n += n_bytes;
+		}
+		return ByteBuffer.wrap(buf, 0, n).slice();
+	}
+
+	/** Grow a buffer array */
+	static private byte[] grow(byte[] buf) throws IOException {
+		if (buf.length >= TilePack.MAX_DATA)
+			throw new IOException("Stream too long");
+		byte[] b = new byte[Math.min(buf.length * 2,
+			TilePack.MAX_DATA)];
+		System.arraycopy(buf, 0, b, 0, buf.length);
+		return b;
+	}
+
+	/** View of buffer data */
+	private final ByteBuffer buffer;
+
+	/** Create an image input stream over a byte buffer.  Data from the
+	 * buffer's position to its limit is used; the buffer itself is not
+	 * modified.
+	 * @param b Byte buffer. */
+	public ByteBufferImageInputStream(ByteBuffer b) {
+		buffer = b.slice();
+	}
+
+	/** Get the length of the stream */
+	@Override
+	public long length() {
+		return buffer.limit();
+	}
+
+	/** Check if the stream is cached (yes, it is) */
+	@Override
+	public boolean isCached() {
+		return true;
+	}
+
+	/** Check if the stream is a cached file (no) */
+	@Override
+	public boolean isCachedFile() {
+		return false;
+	}
+
+	/** Check if the stream is cached in memory (yes) */
+	@Override
+	public boolean isCachedMemory() {
+		return true;
+	}
+
+	/** Read one byte from the stream */
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (streamPos < buffer.limit()) {
+			buffer.position((int) streamPos);
+			streamPos++;
+			return buffer.get() & 0xFF;
+		} else
+			return -1;
+	}
+
+	/** Read data from the stream into an array */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		if (off < 0 || len < 0 || off + len > b.length || off + len < 0)
+			throw new IndexOutOfBoundsException();
+		bitOffset = 0;
+		if (len == 0)
+			return 0;
+		long rem = buffer.limit() - streamPos;
+		if (rem <= 0)
+			return -1;
+		int n_bytes = (int) Math.min(len, rem);
+		buffer.position((int) streamPos);
+		buffer.get(b, off, n_bytes);
+		streamPos += n_bytes;
+		return n_bytes;
+	}
+
+	/** Flush data before the given position */
+	@Override
+	public void flushBefore(long pos) {
+		// Leave flushedPos at 0 to allow seeking back to the start
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * A chained tile source checks several sources in order, such as local
+ * sources before a tile server.  The first source which has a tile serves
+ * it, so failures of a remote source do not block tiles found locally.
+ *
+ * @author Douglas Lau
+ */
+public class ChainedTileSource implements TileSource {
+
+	/** Tile sources, in order */
+	private final TileSource[] sources;
+
+	/** Create a new chained tile source.
+	 * @param s Tile sources, in order. */
+	public ChainedTileSource(TileSource... s) {
+		sources = s.clone();
+	}
+
+	/** Get the tile sources, in order */
+	public TileSource[] getSources() {
+		return sources.clone();
+	}
+
+	/** Check if any source may have a tile */
+	@Override
+	public boolean hasTile(long k) {
+		for (TileSource s: sources) {
+			if (s.hasTile(k))
+				return true;
+		}
+		return false;
+	}
+
+	/** Get the host of the first source which may have a tile */
+	@Override
+	public String getHost(long k) {
+		for (TileSource s: sources) {
+			if (s.hasTile(k))
+				return s.getHost(k);
+		}
+		return null;
+	}
+
+	/** Fetch a tile from the first source which has it */
+	@Override
+	public TileResponse fetchTile(long k, TileValidator v)
+		throws IOException
+	{
+		for (TileSource s: sources) {
+			if (s.hasTile(k)) {
+				try {
+					return s.fetchTile(k, v);
+				}
+				catch (FileNotFoundException e) {
+					// try the next source
+				}
+			}
+		}
+		throw new FileNotFoundException(TileKey.toName(k));
+	}
+}
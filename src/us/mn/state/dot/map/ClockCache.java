@@ -0,0 +1,352 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent cache with primitive long keys and a byte limit.  Entries
+ * are split into segments, each locked separately for updates.  Reads
+ * never lock: hash chains are not changed after they are published (an
+ * entry's predecessors are copied when it is removed), so a reader always
+ * sees a consistent chain.
+ *
+ * Since reads can't reorder entries, eviction uses the CLOCK algorithm.
+ * Each read sets a reference bit; the clock hand clears referenced entries
+ * as it passes, and evicts the first entry which was not referenced since
+ * the last sweep.  Only one thread evicts at a time, and each entry is
+ * removed from its segment and from the byte total under the segment lock,
+ * so racing inserts can never cause extra entries to be evicted.
+ *
+ * @author Douglas Lau
+ */
+public class ClockCache<V> {
+
+	/** Number of segments (must be a power of 2) */
+	static private final int SEGMENTS = 16;
+
+	/** Minimum segment table size */
+	static private final int MIN_TABLE = 16;
+
+	/** Hash a long key */
+	static private int hash(long k) {
+		k ^= (k >>> 33);
+		k *= 0xff51afd7ed558ccdL;
+		k ^= (k >>> 33);
+		return (int) k;
+	}
+
+	/** Listener for evicted entries */
+	public interface Listener<V> {
+
+		/** An entry was evicted */
+		void evicted(long k, V v);
+	}
+
+	/** Cache entry */
+	static private final class Node<V> {
+		private final long key;
+		private final V value;
+		private final long bytes;
+		private final Node<V> next;	// next in hash chain
+		private volatile boolean ref;	// referenced since last sweep
+		private int slot;		// index in clock (segment lock)
+		private Node(long k, V v, long b, Node<V> n) {
+			key = k;
+			value = v;
+			bytes = b;
+			next = n;
+		}
+	}
+
+	/** Cache segment.  All updates are made with the segment locked. */
+	static private final class Segment<V> {
+
+		/** Total bytes of the cache */
+		private final AtomicLong total;
+
+		/** Hash table (replaced on resize) */
+		private volatile AtomicReferenceArray<Node<V>> table =
+			new AtomicReferenceArray<Node<V>>(MIN_TABLE);
+
+		/** Entries in clock order */
+		private final ArrayList<Node<V>> clock =
+			new ArrayList<Node<V>>();
+
+		/** Clock hand */
+		private int hand;
+
+		/** Create a new segment */
+		private Segment(AtomicLong t) {
+			total = t;
+		}
+
+		/** Find an entry (without locking) */
+		private Node<V> find(long k, int h) {
+			AtomicReferenceArray<Node<V>> t = table;
+			Node<V> n = t.get(h & (t.length() - 1));
+			while (n != null && n.key != k)
+				n = n.next;
+			return n;
+		}
+
+		/** Put an entry.
+		 * @return Previous entry for the key, or null. */
+		private synchronized Node<V> put(long k, int h, V v, long b) {
+			Node<V> o = remove(k, h);
+			if (clock.size() + clock.size() / 2 >= table.length())
+				resize(table.length() * 2);
+			AtomicReferenceArray<Node<V>> t = table;
+			int i = h & (t.length() - 1);
+			Node<V> n = new Node<V>(k, v, b, t.get(i));
+			// New entries get one sweep before eviction
+			n.ref = true;
+			n.slot = clock.size();
+			clock.add(n);
+			// Put new entry just behind the hand, to be swept last
+			if (hand < n.slot) {
+				Node<V> e = clock.get(hand);
+				e.slot = n.slot;
+				clock.set(e.slot, e);
+				n.slot = hand;
+				clock.set(hand, n);
+				hand++;
+			}
+			t.set(i, n);
+			total.addAndGet(b);
+			return o;
+		}
+
+		/** Remove an entry.
+		 * @return Removed entry, or null. */
+		private synchronized Node<V> remove(long k, int h) {
+			AtomicReferenceArray<Node<V>> t = table;
+			int i = h & (t.length() - 1);
+			Node<V> first = t.get(i);
+			for (Node<V> e = first; e != null; e = e.next) {
+				if (e.key == k) {
+					Node<V> n = e.next;
+					Node<V> p = first;
+					for (; p != e; p = p.next)
+						n = copy(p, n);
+					t.set(i, n);
+					unclock(e);
+					total.addAndGet(-e.bytes);
+					return e;
+				}
+			}
+			return null;
+		}
+
+		/** Copy an entry into a new chain, replacing it in the clock */
+		private Node<V> copy(Node<V> p, Node<V> n) {
+			Node<V> c = new Node<V>(p.key, p.value, p.bytes, n);
+			c.ref = p.ref;
+			c.slot = p.slot;
+			clock.set(c.slot, c);
+			return c;
+		}
+
+		/** Remove an entry from the clock */
+		private void unclock(Node<V> e) {
+			Node<V> last = clock.remove(clock.size() - 1);
+			if (last != e) {
+				last.slot = e.slot;
+				clock.set(e.slot, last);
+			}
+			if (hand >= clock.size())
+				hand = 0;
+		}
+
+		/** Resize the hash table.  Chains are rebuilt in a new table,
+		 * so readers of the old table are not disturbed. */
+		private void resize(int len) {
+			AtomicReferenceArray<Node<V>> t =
+				new AtomicReferenceArray<Node<V>>(len);
+			for (int s = 0; s < clock.size(); s++) {
+				Node<V> p = clock.get(s);
+				int i = hash(p.key) & (len - 1);
+				t.set(i, copy(p, t.get(i)));
+			}
+			table = t;
+		}
+
+		/** Evict the next unreferenced entry, sweeping at most once
+		 * around the clock.
+		 * @param force Evict the entry at the hand if all entries
+		 *              were referenced.
+		 * @return Evicted entry, or null. */
+		private synchronized Node<V> evict(boolean force) {
+			for (int i = 0; i < clock.size(); i++) {
+				Node<V> n = clock.get(hand);
+				if (!n.ref)
+					return remove(n.key, hash(n.key));
+				n.ref = false;
+				hand = (hand + 1) % clock.size();
+			}
+			if (force && !clock.isEmpty()) {
+				Node<V> n = clock.get(hand);
+				return remove(n.key, hash(n.key));
+			}
+			return null;
+		}
+
+		/** Get the number of entries */
+		private synchronized int size() {
+			return clock.size();
+		}
+
+		/** Clear all entries */
+		private synchronized void clear() {
+			for (Node<V> n: clock)
+				total.addAndGet(-n.bytes);
+			clock.clear();
+			hand = 0;
+			table = new AtomicReferenceArray<Node<V>>(MIN_TABLE);
+		}
+	}
+
+	/** Total bytes of all entries */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/** Cache segments */
+	private final Segment<V>[] segments = createSegments(bytes);
+
+	/** Create cache segments */
+	@SuppressWarnings("unchecked")
+	static private <V> Segment<V>[] createSegments(AtomicLong t) {
+		Segment<V>[] s = (Segment<V>[]) new Segment[SEGMENTS];
+		for (int i = 0; i < s.length; i++)
+			s[i] = new Segment<V>(t);
+		return s;
+	}
+
+	/** Lock for evicting entries */
+	private final ReentrantLock evict_lock = new ReentrantLock();
+
+	/** Next segment to evict from (protected by evict_lock) */
+	private int evict_seg;
+
+	/** Get the segment for a hash */
+	private Segment<V> segment(int h) {
+		return segments[(h >>> 28) & (SEGMENTS - 1)];
+	}
+
+	/** Get the value for a key, and mark it referenced */
+	public V get(long k) {
+		int h = hash(k);
+		Node<V> n = segment(h).find(k, h);
+		if (n != null) {
+			if (!n.ref)
+				n.ref = true;
+			return n.value;
+		} else
+			return null;
+	}
+
+	/** Get the value for a key, without marking it referenced */
+	public V peek(long k) {
+		int h = hash(k);
+		Node<V> n = segment(h).find(k, h);
+		return (n != null) ? n.value : null;
+	}
+
+	/** Check if the cache contains a key */
+	public boolean containsKey(long k) {
+		int h = hash(k);
+		return segment(h).find(k, h) != null;
+	}
+
+	/** Put a value into the cache.  This never evicts; call evict
+	 * afterwards to enforce a limit.
+	 * @param k Key.
+	 * @param v Value.
+	 * @param b Size of value (bytes).
+	 * @return Previous value for the key, or null. */
+	public V put(long k, V v, long b) {
+		int h = hash(k);
+		Node<V> o = segment(h).put(k, h, v, b);
+		return (o != null) ? o.value : null;
+	}
+
+	/** Remove a key from the cache.
+	 * @return Removed value, or null. */
+	public V remove(long k) {
+		int h = hash(k);
+		Node<V> o = segment(h).remove(k, h);
+		return (o != null) ? o.value : null;
+	}
+
+	/** Evict entries until the total size is within a limit.  If another
+	 * thread is already evicting, this returns without waiting; that
+	 * thread checks the limit again before it finishes.
+	 * @param limit Size limit (bytes).
+	 * @param l Listener for evicted entries (may be null). */
+	public void evict(long limit, Listener<V> l) {
+		while (bytes.get() > limit && evict_lock.tryLock()) {
+			try {
+				while (bytes.get() > limit) {
+					Node<V> n = evictNext();
+					if (n == null)
+						return;
+					if (l != null)
+						l.evicted(n.key, n.value);
+				}
+			}
+			finally {
+				evict_lock.unlock();
+			}
+		}
+	}
+
+	/** Evict the next entry, taking segments in turn.  A segment where
+	 * all entries were referenced is skipped (after clearing them), so
+	 * unreferenced entries in other segments are evicted first.  Only
+	 * if readers keep entries referenced for two rounds is an entry
+	 * evicted anyway.  Must be called with evict_lock held.
+	 * @return Evicted entry, or null if empty. */
+	private Node<V> evictNext() {
+		for (int i = 0; i < SEGMENTS * 3; i++) {
+			Segment<V> s = segments[evict_seg];
+			evict_seg = (evict_seg + 1) & (SEGMENTS - 1);
+			Node<V> n = s.evict(i >= SEGMENTS * 2);
+			if (n != null)
+				return n;
+		}
+		return null;
+	}
+
+	/** Get the total size of all entries (bytes) */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/** Get the number of entries */
+	public int size() {
+		int n = 0;
+		for (Segment<V> s: segments)
+			n += s.size();
+		return n;
+	}
+
+	/** Clear all entries */
+	public void clear() {
+		for (Segment<V> s: segments)
+			s.clear();
+	}
+}
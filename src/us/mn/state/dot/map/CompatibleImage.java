@@ -0,0 +1,88 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+
+/**
+ * Helper for creating images in a pixel format compatible with the screen,
+ * so they can be drawn without any color conversion.
+ *
+ * @author Douglas Lau
+ */
+public final class CompatibleImage {
+
+	/** Don't allow instantiation */
+	private CompatibleImage() { }
+
+	/** Get the default graphics configuration (null for headless) */
+	static private GraphicsConfiguration getConfiguration() {
+		if (GraphicsEnvironment.isHeadless())
+			return null;
+		return GraphicsEnvironment.getLocalGraphicsEnvironment()
+			.getDefaultScreenDevice().getDefaultConfiguration();
+	}
+
+	/** Create a compatible image.
+	 * @param w Image width.
+	 * @param h Image height.
+	 * @param t Transparency (from java.awt.Transparency). */
+	static public BufferedImage create(int w, int h, int t) {
+		GraphicsConfiguration gc = getConfiguration();
+		if (gc != null)
+			return gc.createCompatibleImage(w, h, t);
+		else {
+			// Headless: match the MapPane screen buffer
+			int it = (t == Transparency.OPAQUE)
+			       ? BufferedImage.TYPE_INT_RGB
+			       : BufferedImage.TYPE_INT_ARGB_PRE;
+			return new BufferedImage(w, h, it);
+		}
+	}
+
+	/** Check if an image is already in a compatible format */
+	static public boolean isCompatible(BufferedImage img) {
+		int t = img.getTransparency();
+		GraphicsConfiguration gc = getConfiguration();
+		if (gc != null) {
+			ColorModel cm = gc.getColorModel(t);
+			return cm.equals(img.getColorModel());
+		} else {
+			int tp = img.getType();
+			return (t == Transparency.OPAQUE)
+			     ? (tp == BufferedImage.TYPE_INT_RGB)
+			     : (tp == BufferedImage.TYPE_INT_ARGB_PRE);
+		}
+	}
+
+	/** Convert an image to a compatible format */
+	static public BufferedImage convert(BufferedImage img) {
+		if (isCompatible(img))
+			return img;
+		BufferedImage ci = create(img.getWidth(), img.getHeight(),
+			img.getTransparency());
+		Graphics2D g = ci.createGraphics();
+		g.setComposite(AlphaComposite.Src);
+		g.drawImage(img, 0, 0, null);
+		g.dispose();
+		return ci;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+/**
+ * A directory tile source reads tiles from a local directory tree, laid
+ * out as "zoom/x/y" with a file extension (as on a tile server).  File
+ * modification times are used as validators.
+ *
+ * @author Douglas Lau
+ */
+public class DirectoryTileSource implements TileSource {
+
+	/** Base directory */
+	private final File dir;
+
+	/** File extension (including dot) */
+	private final String ext;
+
+	/** Create a new directory tile source.
+	 * @param d Base directory.
+	 * @param e File extension (including dot, such as ".png"). */
+	public DirectoryTileSource(File d, String e) {
+		dir = d;
+		ext = e;
+	}
+
+	/** Create a new directory tile source for PNG files */
+	public DirectoryTileSource(File d) {
+		this(d, ".png");
+	}
+
+	/** Get the file for a tile */
+	private File getFile(long k) {
+		return new File(dir, TileKey.toName(k) + ext);
+	}
+
+	/** Check if the source may have a tile */
+	@Override
+	public boolean hasTile(long k) {
+		return getFile(k).isFile();
+	}
+
+	/** Get the host which serves a tile (none) */
+	@Override
+	public String getHost(long k) {
+		return null;
+	}
+
+	/** Fetch a tile */
+	@Override
+	public TileResponse fetchTile(long k, TileValidator v)
+		throws IOException
+	{
+		File f = getFile(k);
+		long now = System.currentTimeMillis();
+		long lm = f.lastModified();
+		if (v != null && lm > 0 && lm <= v.getLastModified())
+			return TileResponse.notModified(v.revalidated(null, lm,
+				now));
+		// FileInputStream throws FileNotFoundException if missing
+		InputStream is = new FileInputStream(f);
+		return new TileResponse(is, f.length(),
+			new TileValidator(null, lm, now));
+	}
+}
@@ -1,6 +1,6 @@
 /*
  * IRIS -- Intelligent Roadway Information System
- * Copyright (C) 2011  Minnesota Department of Transportation
+ * Copyright (C) 2011-2016  Minnesota Department of Transportation
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -16,26 +16,170 @@ package us.mn.state.dot.map;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * An image fetcher is a simple class to fetch images remotely.
+ * An image fetcher is a simple class to fetch images remotely.  The URL
+ * can be a template containing a host token ("{s}"), which is replaced by
+ * one of several host names.  Each image name always maps to the same
+ * host, so requests are spread over the hosts (allowing more parallel
+ * connections) without splitting any caching between them.  As a tile
+ * source, tiles are fetched by name ("zoom/x/y").  Requests are counted
+ * by host, and response times (until the response body can be read) are
+ * kept in a histogram.
  *
  * @author Douglas Lau
  */
-public class ImageFetcher {
+public class ImageFetcher implements TileSource {
 
-	/** Base URL to fetch images */
-	protected final URL base_url;
+	/** Host token in URL templates */
+	static public final String HOST_TOKEN = "{s}";
+
+	/** Base URL template to fetch images */
+	protected final String base_url;
+
+	/** Host names to substitute for host token */
+	private final String[] hosts;
+
+	/** Host name of base URL */
+	private final String base_host;
+
+	/** Transport for fetching images */
+	private final TileTransport transport;
+
+	/** Count of requests by host index */
+	private final AtomicLongArray host_requests;
+
+	/** Count of failed requests */
+	private final AtomicLong n_errors = new AtomicLong();
+
+	/** Time until responses are received */
+	private final LatencyHistogram response_time = new LatencyHistogram();
+
+	/** Create a new image fetcher.
+	 * @param url Base URL (or template with host token).
+	 * @param h Host names to substitute for host token.
+	 * @param t Transport for fetching images. */
+	public ImageFetcher(String url, String[] h, TileTransport t)
+		throws IOException
+	{
+		base_url = url;
+		hosts = (h != null && h.length > 0) ? h.clone() : null;
+		if (url.contains(HOST_TOKEN) && hosts == null) {
+			throw new MalformedURLException(
+				"No hosts for template: " + url);
+		}
+		transport = t;
+		host_requests = new AtomicLongArray((hosts != null)
+			? hosts.length : 1);
+		// Check that the URL is valid
+		base_host = getURL("").getHost();
+	}
 
 	/** Create a new image fetcher for the specified URL */
 	public ImageFetcher(String url) throws IOException {
-		base_url = new URL(url);
+		this(url, null, new UrlTransport());
+	}
+
+	/** Get the host index for a named image */
+	private int hostIndex(String n) {
+		return (n.hashCode() & Integer.MAX_VALUE) % hosts.length;
+	}
+
+	/** Get the request counter index for a named image */
+	private int requestIndex(String n) {
+		return (hosts != null) ? hostIndex(n) : 0;
+	}
+
+	/** Get the host name for a named image */
+	public String getHost(String n) {
+		return (hosts != null) ? hosts[hostIndex(n)] : base_host;
+	}
+
+	/** Get the URL of a named image */
+	public URL getURL(String n) throws MalformedURLException {
+		String url = base_url;
+		if (hosts != null)
+			url = url.replace(HOST_TOKEN, hosts[hostIndex(n)]);
+		return new URL(url + n + ".png");
+	}
+
+	/** Check if the source may have a tile (always) */
+	@Override
+	public boolean hasTile(long k) {
+		return true;
+	}
+
+	/** Get the host which serves a tile */
+	@Override
+	public String getHost(long k) {
+		return getHost(TileKey.toName(k));
+	}
+
+	/** Fetch a tile */
+	@Override
+	public TileResponse fetchTile(long k, TileValidator v)
+		throws IOException
+	{
+		return fetchImage(TileKey.toName(k), v);
 	}
 
 	/** Fetch the named image */
 	public InputStream fetchImage(String n) throws IOException {
-		URL url = new URL(base_url.toExternalForm() + n + ".png");
-		return url.openStream();
+		return fetchImage(n, null).getStream();
+	}
+
+	/** Fetch the named image, if modified.
+	 * @param n Image name.
+	 * @param v Validators of cached copy (null for unconditional).
+	 * @return Tile response. */
+	public TileResponse fetchImage(String n, TileValidator v)
+		throws IOException
+	{
+		URL url = getURL(n);
+		host_requests.incrementAndGet(requestIndex(n));
+		long start = System.nanoTime();
+		try {
+			TileResponse r = transport.open(url, v);
+			response_time.recordSince(start);
+			return r;
+		}
+		catch (IOException e) {
+			n_errors.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/** Get the time until responses are received */
+	public LatencyHistogram getResponseTime() {
+		return response_time;
+	}
+
+	/** Get the total count of requests */
+	public long getRequestCount() {
+		long n = 0;
+		for (int i = 0; i < host_requests.length(); i++)
+			n += host_requests.get(i);
+		return n;
+	}
+
+	/** Get the count of failed requests (including missing tiles) */
+	public long getErrorCount() {
+		return n_errors.get();
+	}
+
+	/** Get the count of requests by host name */
+	public Map<String, Long> getHostRequests() {
+		TreeMap<String, Long> m = new TreeMap<String, Long>();
+		for (int i = 0; i < host_requests.length(); i++) {
+			String h = (hosts != null) ? hosts[i] : base_host;
+			m.put(h, host_requests.get(i));
+		}
+		return m;
 	}
 }
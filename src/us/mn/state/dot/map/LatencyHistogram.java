@@ -0,0 +1,170 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with power-of-two buckets (in microseconds).
+ * Recording a sample only increments a few atomic counters, so it is
+ * cheap enough for the paint path.  Percentiles are estimated as the upper
+ * bound of the bucket containing them.
+ *
+ * @author Douglas Lau
+ */
+public class LatencyHistogram {
+
+	/** Number of buckets (the last holds samples over ~18 minutes) */
+	static private final int BUCKETS = 31;
+
+	/** Get the bucket for a latency (us) */
+	static private int bucket(long us) {
+		int b = 64 - Long.numberOfLeadingZeros(us);
+		return Math.min(b, BUCKETS - 1);
+	}
+
+	/** Get the upper bound of a bucket (us) */
+	static private long upperBound(int b) {
+		return (1L << b) - 1;
+	}
+
+	/** Sample counts by bucket */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	/** Total count of samples */
+	private final AtomicLong count = new AtomicLong();
+
+	/** Total of all samples (us) */
+	private final AtomicLong total = new AtomicLong();
+
+	/** Maximum sample (us) */
+	private final AtomicLong max = new AtomicLong();
+
+	/** Record a sample.
+	 * @param ns Latency (ns), from System.nanoTime differences. */
+	public void record(long ns) {
+		long us = Math.max(0, ns / 1000);
+		buckets.incrementAndGet(bucket(us));
+		count.incrementAndGet();
+		total.addAndGet(us);
+		long m = max.get();
+		while (us > m && !max.compareAndSet(m, us))
+			m = max.get();
+	}
+
+	/** Record a sample starting at a time.
+	 * @param start Start time (from System.nanoTime). */
+	public void recordSince(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	/** Get the count of samples */
+	public long getCount() {
+		return count.get();
+	}
+
+	/** Get a snapshot of the histogram */
+	public Snapshot getSnapshot() {
+		long[] b = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			b[i] = buckets.get(i);
+			n += b[i];
+		}
+		long mean = (n > 0) ? total.get() / n : 0;
+		return new Snapshot(n, mean, percentile(b, n, 0.5),
+			percentile(b, n, 0.9), percentile(b, n, 0.99),
+			max.get());
+	}
+
+	/** Estimate a percentile from bucket counts (us) */
+	static private long percentile(long[] b, long n, double p) {
+		long rank = (long) Math.ceil(n * p);
+		long c = 0;
+		for (int i = 0; i < b.length; i++) {
+			c += b[i];
+			if (c >= rank && c > 0)
+				return upperBound(i);
+		}
+		return 0;
+	}
+
+	/** Clear the histogram */
+	public void clear() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	/** Snapshot of a latency histogram.  This is an MXBean composite
+	 * type, so it can be charted by JMX monitoring tools. */
+	static public final class Snapshot {
+
+		private final long count;
+		private final long mean;
+		private final long p50;
+		private final long p90;
+		private final long p99;
+		private final long max;
+
+		/** Create a new snapshot (all times in us) */
+		@ConstructorProperties({ "count", "meanMicros", "p50Micros",
+			"p90Micros", "p99Micros", "maxMicros" })
+		public Snapshot(long count, long mean, long p50, long p90,
+			long p99, long max)
+		{
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		/** Get the count of samples */
+		public long getCount() {
+			return count;
+		}
+
+		/** Get the mean latency (us) */
+		public long getMeanMicros() {
+			return mean;
+		}
+
+		/** Get the median latency (us) */
+		public long getP50Micros() {
+			return p50;
+		}
+
+		/** Get the 90th percentile latency (us) */
+		public long getP90Micros() {
+			return p90;
+		}
+
+		/** Get the 99th percentile latency (us) */
+		public long getP99Micros() {
+			return p99;
+		}
+
+		/** Get the maximum latency (us) */
+		public long getMaxMicros() {
+			return max;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * A local tile transport serves tiles from a directory instead of a
+ * server.  The path of each URL (ignoring host) is resolved against the
+ * directory.  An optional latency can be added to each request, to stand
+ * in for a tile server when load testing offline.  File modification
+ * times are used as validators for conditional requests.
+ *
+ * @author Douglas Lau
+ */
+public class LocalTransport implements TileTransport {
+
+	/** Base directory */
+	private final File dir;
+
+	/** Simulated latency (ms) */
+	private final int latency_ms;
+
+	/** Create a new local transport.
+	 * @param d Base directory.
+	 * @param l_ms Simulated latency for each request (ms). */
+	public LocalTransport(File d, int l_ms) {
+		dir = d;
+		latency_ms = l_ms;
+	}
+
+	/** Open a stream to fetch an image */
+	@Override
+	public TileResponse open(URL url, TileValidator v) throws IOException {
+		if (latency_ms > 0) {
+			try {
+				Thread.sleep(latency_ms);
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException(
+					e.getMessage());
+			}
+		}
+		File f = new File(dir, url.getPath());
+		long now = System.currentTimeMillis();
+		long lm = f.lastModified();
+		if (v != null && lm > 0 && lm <= v.getLastModified())
+			return TileResponse.notModified(v.revalidated(null, lm,
+				now));
+		// FileInputStream throws FileNotFoundException if missing
+		InputStream is = new FileInputStream(f);
+		return new TileResponse(is, f.length(),
+			new TileValidator(null, lm, now));
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A hash map with primitive long keys.  Entries are linked in insertion
+ * order, or in access order (like LinkedHashMap), so the eldest entry can
+ * be found in constant time.  This class is not thread-safe.
+ *
+ * @author Douglas Lau
+ */
+public class LongHashMap<V> {
+
+	/** Minimum table size */
+	static private final int MIN_TABLE = 16;
+
+	/** Hash a long key */
+	static private int hash(long k) {
+		k ^= (k >>> 33);
+		k *= 0xff51afd7ed558ccdL;
+		k ^= (k >>> 33);
+		return (int) k;
+	}
+
+	/** Map entry */
+	static private final class Entry<V> {
+		private final long key;
+		private V value;
+		private Entry<V> next;		// next in hash chain
+		private Entry<V> before;	// previous in linked order
+		private Entry<V> after;		// next in linked order
+		private Entry(long k, V v) {
+			key = k;
+			value = v;
+		}
+	}
+
+	/** Flag for access order (false for insertion order) */
+	private final boolean access_order;
+
+	/** Header of linked list (eldest is after header) */
+	private final Entry<V> header = new Entry<V>(0, null);
+
+	/** Hash table */
+	private Entry<V>[] table;
+
+	/** Number of entries */
+	private int size;
+
+	/** Create a new long hash map.
+	 * @param cap Initial capacity.
+	 * @param ao Access order flag (false for insertion order). */
+	public LongHashMap(int cap, boolean ao) {
+		access_order = ao;
+		header.before = header;
+		header.after = header;
+		table = createTable(tableSize(cap));
+	}
+
+	/** Create a new long hash map in insertion order */
+	public LongHashMap() {
+		this(MIN_TABLE, false);
+	}
+
+	/** Get the table size for a capacity */
+	static private int tableSize(int cap) {
+		int n = MIN_TABLE;
+		while (n < cap + cap / 2 && n < (1 << 30))
+			n <<= 1;
+		return n;
+	}
+
+	/** Create a hash table */
+	@SuppressWarnings("unchecked")
+	static private <V> Entry<V>[] createTable(int n) {
+		return (Entry<V>[]) new Entry[n];
+	}
+
+	/** Get the number of entries */
+	public int size() {
+		return size;
+	}
+
+	/** Check if the map is empty */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** Find an entry */
+	private Entry<V> find(long k) {
+		Entry<V> e = table[hash(k) & (table.length - 1)];
+		while (e != null && e.key != k)
+			e = e.next;
+		return e;
+	}
+
+	/** Check if the map contains a key */
+	public boolean containsKey(long k) {
+		return find(k) != null;
+	}
+
+	/** Get the value for a key.  In access order, this makes the entry
+	 * the most recently used. */
+	public V get(long k) {
+		Entry<V> e = find(k);
+		if (e != null) {
+			if (access_order)
+				moveToEnd(e);
+			return e.value;
+		} else
+			return null;
+	}
+
+	/** Get the value for a key, without changing the order */
+	public V peek(long k) {
+		Entry<V> e = find(k);
+		return (e != null) ? e.value : null;
+	}
+
+	/** Put a value into the map.
+	 * @return Previous value for the key, or null. */
+	public V put(long k, V v) {
+		Entry<V> e = find(k);
+		if (e != null) {
+			V ov = e.value;
+			e.value = v;
+			if (access_order)
+				moveToEnd(e);
+			return ov;
+		}
+		if (size + size / 2 >= table.length)
+			resize(table.length * 2);
+		e = new Entry<V>(k, v);
+		int i = hash(k) & (table.length - 1);
+		e.next = table[i];
+		table[i] = e;
+		linkLast(e);
+		size++;
+		return null;
+	}
+
+	/** Remove a key from the map.
+	 * @return Previous value for the key, or null. */
+	public V remove(long k) {
+		int i = hash(k) & (table.length - 1);
+		Entry<V> prev = null;
+		Entry<V> e = table[i];
+		while (e != null) {
+			if (e.key == k) {
+				if (prev != null)
+					prev.next = e.next;
+				else
+					table[i] = e.next;
+				unlink(e);
+				size--;
+				return e.value;
+			}
+			prev = e;
+			e = e.next;
+		}
+		return null;
+	}
+
+	/** Get the key of the eldest entry.
+	 * @throws NoSuchElementException if the map is empty. */
+	public long eldestKey() {
+		if (size == 0)
+			throw new NoSuchElementException();
+		return header.after.key;
+	}
+
+	/** Get all keys, eldest first */
+	public long[] keys() {
+		long[] keys = new long[size];
+		int i = 0;
+		for (Entry<V> e = header.after; e != header; e = e.after)
+			keys[i++] = e.key;
+		return keys;
+	}
+
+	/** Remove all entries */
+	public void clear() {
+		for (int i = 0; i < table.length; i++)
+			table[i] = null;
+		header.before = header;
+		header.after = header;
+		size = 0;
+	}
+
+	/** Resize the hash table */
+	private void resize(int n) {
+		Entry<V>[] t = createTable(n);
+		for (Entry<V> e = header.after; e != header; e = e.after) {
+			int i = hash(e.key) & (n - 1);
+			e.next = t[i];
+			t[i] = e;
+		}
+		table = t;
+	}
+
+	/** Link an entry at the end of the list */
+	private void linkLast(Entry<V> e) {
+		e.before = header.before;
+		e.after = header;
+		header.before.after = e;
+		header.before = e;
+	}
+
+	/** Unlink an entry from the list */
+	private void unlink(Entry<V> e) {
+		e.before.after = e.after;
+		e.after.before = e.before;
+		e.before = null;
+		e.after = null;
+	}
+
+	/** Move an entry to the end of the list */
+	private void moveToEnd(Entry<V> e) {
+		if (e != header.before) {
+			unlink(e);
+			linkLast(e);
+		}
+	}
+}
@@ -1,6 +1,6 @@
 /*
  * IRIS -- Intelligent Roadway Information System
- * Copyright (C) 2000-2013  Minnesota Department of Transportation
+ * Copyright (C) 2000-2016  Minnesota Department of Transportation
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -14,20 +14,33 @@
  */
 package us.mn.state.dot.map;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
+import java.awt.Transparency;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * This class can be used to generate map graphics when access to the graphics
  * subsystem is not available.
  *
+ * Layers are drawn in stacks, each with its own buffer, which are then
+ * composited into the screen buffer.  A layer which sends a change event on
+ * its own (new tiles, status updates, etc.) is put into a separate stack,
+ * and static layers between those are stacked together.  When a layer
+ * changes, only its stack is drawn again.  Until any layer changes on its
+ * own, all layers are in one stack, drawn straight into the screen buffer.
+ *
  * @author Erik Engstrom
  * @author Douglas Lau
  */
@@ -39,8 +52,74 @@ class MapPane implements LayerChangeListener {
 	/** Buffer for map */
 	protected BufferedImage screenBuffer;
 
-	/** Dirty flag */
-	private boolean dirty = true;
+	/** Sources of layer changes since the map was drawn (protected by
+	 * changed lock) */
+	private final Set<Object> changed = new HashSet<Object>();
+
+	/** Flag to redraw all layers (protected by changed lock) */
+	private boolean redraw_all = true;
+
+	/** Layers which have changed on their own */
+	private final Set<LayerState> active = new HashSet<LayerState>();
+
+	/** Layers in the current stacks, from bottom to top */
+	private final ArrayList<LayerState> stacked =
+		new ArrayList<LayerState>();
+
+	/** Layer stacks, from bottom to top */
+	private final ArrayList<LayerStack> stacks =
+		new ArrayList<LayerStack>();
+
+	/** A stack of consecutive layers, drawn into one buffer */
+	private class LayerStack {
+
+		/** Layers in the stack, from bottom to top */
+		private final ArrayList<LayerState> layers =
+			new ArrayList<LayerState>();
+
+		/** Buffer for stack (null if no layers are visible) */
+		private BufferedImage buffer;
+
+		/** Check if any layer in the stack has changed */
+		private boolean isChanged(Set<LayerState> ch) {
+			for(LayerState s: layers) {
+				if(ch.contains(s))
+					return true;
+			}
+			return false;
+		}
+
+		/** Check if any layer in the stack is visible */
+		private boolean isVisible() {
+			for(LayerState s: layers) {
+				if(s.isVisible())
+					return true;
+			}
+			return false;
+		}
+
+		/** Draw the layers into the stack buffer */
+		private void draw(int w, int h) {
+			if(!isVisible()) {
+				buffer = null;
+				return;
+			}
+			BufferedImage b = buffer;
+			if(b == null || b.getWidth() != w ||
+			   b.getHeight() != h)
+			{
+				b = CompatibleImage.create(w, h,
+					Transparency.TRANSLUCENT);
+				buffer = b;
+			}
+			Graphics2D g = b.createGraphics();
+			g.setComposite(AlphaComposite.Clear);
+			g.fillRect(0, 0, w, h);
+			g.setComposite(AlphaComposite.SrcOver);
+			paintLayers(g, layers);
+			g.dispose();
+		}
+	}
 
 	/** Transform from world to screen coordinates */
 	protected final AffineTransform transform = new AffineTransform();
@@ -68,7 +147,9 @@ class MapPane implements LayerChangeListener {
 	public void setSize(Dimension d) {
 		screenBuffer = createImage(d.width, d.height);
 		rescale();
-		dirty = true;
+		synchronized(changed) {
+			redraw_all = true;
+		}
 	}
 
 	/** Create a buffered image of the specified size */
@@ -87,6 +168,9 @@ class MapPane implements LayerChangeListener {
 
 	/** Dispose of the map pane */
 	public void dispose() {
+		stacks.clear();
+		stacked.clear();
+		active.clear();
 	}
 
 	/** Change the scale of the map panel */
@@ -118,26 +202,122 @@ class MapPane implements LayerChangeListener {
 	/** Get the current image for the map panel */
 	public BufferedImage getImage() {
 		BufferedImage bi = screenBuffer;
-		if(dirty) {
-			drawImage(bi);
-			dirty = false;
+		boolean all;
+		Set<Object> src;
+		synchronized(changed) {
+			if(!redraw_all && changed.isEmpty())
+				return bi;
+			all = redraw_all;
+			src = new HashSet<Object>(changed);
+			redraw_all = false;
+			changed.clear();
 		}
+		drawImage(bi, all, src);
 		return bi;
 	}
 
-	/** Draw the map image */
-	private void drawImage(BufferedImage bi) {
+	/** Draw the map image.
+	 * @param bi Screen buffer.
+	 * @param all Flag to redraw all layers.
+	 * @param src Sources of layer changes. */
+	private void drawImage(BufferedImage bi, boolean all, Set<Object> src) {
+		List<LayerState> layers = mapbean.getLayers();
+		Set<LayerState> ch = findChanged(layers, src);
+		if(ch == null)
+			all = true;
+		boolean restack = !stacked.equals(layers);
+		if(!all) {
+			for(LayerState s: ch)
+				restack |= active.add(s);
+		}
+		if(restack) {
+			buildStacks(layers);
+			all = true;
+		}
+		if(stacks.size() > 1)
+			drawStacks(bi, all, ch);
+		else {
+			Graphics2D g = bi.createGraphics();
+			g.setBackground(background);
+			g.clearRect(0, 0, bi.getWidth(), bi.getHeight());
+			paintLayers(g, layers);
+			g.dispose();
+		}
+	}
+
+	/** Find layers which have changed.
+	 * @param layers All layers in the map.
+	 * @param src Sources of layer changes.
+	 * @return Changed layers, or null if any source is not a layer (or
+	 *         layer state) in the map. */
+	private Set<LayerState> findChanged(List<LayerState> layers,
+		Set<Object> src)
+	{
+		Set<LayerState> ch = new HashSet<LayerState>();
+		Set<Object> found = new HashSet<Object>();
+		for(LayerState s: layers) {
+			if(src.contains(s)) {
+				ch.add(s);
+				found.add(s);
+			}
+			if(src.contains(s.getLayer())) {
+				ch.add(s);
+				found.add(s.getLayer());
+			}
+		}
+		return (found.size() == src.size()) ? ch : null;
+	}
+
+	/** Build layer stacks.  Each active layer gets its own stack, and
+	 * other layers are stacked with their static neighbors. */
+	private void buildStacks(List<LayerState> layers) {
+		active.retainAll(layers);
+		stacked.clear();
+		stacked.addAll(layers);
+		stacks.clear();
+		LayerStack st = null;
+		for(LayerState s: layers) {
+			if(st == null || active.contains(s) ||
+			   active.contains(st.layers.get(0)))
+			{
+				st = new LayerStack();
+				stacks.add(st);
+			}
+			st.layers.add(s);
+		}
+	}
+
+	/** Draw changed stacks, and composite all stacks into the screen
+	 * buffer.
+	 * @param bi Screen buffer.
+	 * @param all Flag to draw all stacks.
+	 * @param ch Changed layers. */
+	private void drawStacks(BufferedImage bi, boolean all,
+		Set<LayerState> ch)
+	{
+		int w = bi.getWidth();
+		int h = bi.getHeight();
 		Graphics2D g = bi.createGraphics();
 		g.setBackground(background);
-		g.clearRect(0, 0, bi.getWidth(), bi.getHeight());
+		g.clearRect(0, 0, w, h);
+		for(LayerStack st: stacks) {
+			if(all || st.isChanged(ch))
+				st.draw(w, h);
+			if(st.buffer != null)
+				g.drawImage(st.buffer, 0, 0, null);
+		}
+		g.dispose();
+	}
+
+	/** Paint layers with the map transform */
+	private void paintLayers(Graphics2D g, List<LayerState> layers) {
 		g.transform(transform);
 		if(antialiased) {
 			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
 				RenderingHints.VALUE_ANTIALIAS_ON);
 		}
-		for(LayerState s: mapbean.getLayers())
+		for(LayerState s: layers)
 			s.paint(g);
-		g.dispose();
 	}
 
 	/** Get the buffered image */
@@ -145,7 +325,8 @@ class MapPane implements LayerChangeListener {
 		return screenBuffer;
 	}
 
-	/** Map model has changed */
+	/** Map model has changed.  For extent (or model) changes, all
+	 * layers are drawn again; otherwise, only the layer which changed. */
 	@Override
 	public void layerChanged(LayerChangeEvent ev) {
 		switch(ev.getReason()) {
@@ -154,8 +335,14 @@ class MapPane implements LayerChangeListener {
 		case model:
 		case extent:
 			rescale();
+			synchronized(changed) {
+				redraw_all = true;
+			}
+			break;
 		default:
-			dirty = true;
+			synchronized(changed) {
+				changed.add(ev.getSource());
+			}
 		}
 	}
 
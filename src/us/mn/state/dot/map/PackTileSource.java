@@ -0,0 +1,81 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A pack tile source reads tiles from a read-only tile pack.  The pack is
+ * memory-mapped and indexed when opened, so each lookup is a hash lookup
+ * plus a slice of the mapped file, with no per-tile file open or copy.
+ *
+ * @author Douglas Lau
+ */
+public class PackTileSource implements TileSource {
+
+	/** Tile pack */
+	private final TilePack pack;
+
+	/** Create a new pack tile source.
+	 * @param f Tile pack file. */
+	public PackTileSource(File f) throws IOException {
+		pack = TilePack.openReadOnly(f);
+	}
+
+	/** Get the number of tiles in the pack */
+	public int size() {
+		return pack.size();
+	}
+
+	/** Check if the source may have a tile */
+	@Override
+	public boolean hasTile(long k) {
+		return pack.contains(k);
+	}
+
+	/** Get the host which serves a tile (none) */
+	@Override
+	public String getHost(long k) {
+		return null;
+	}
+
+	/** Fetch a tile */
+	@Override
+	public TileResponse fetchTile(long k, TileValidator v)
+		throws IOException
+	{
+		long now = System.currentTimeMillis();
+		TileValidator pv = pack.getValidator(k);
+		if (v != null && pv != null && pv.matches(v))
+			return TileResponse.notModified(v.revalidated(null, 0,
+				now));
+		ByteBuffer b = pack.lookupBuffer(k);
+		if (b == null)
+			throw new FileNotFoundException(TileKey.toName(k));
+		TileValidator rv = (pv != null)
+			? new TileValidator(pv.getETag(), pv.getLastModified(),
+				now)
+			: new TileValidator(null, 0, now);
+		return new TileResponse(b, rv);
+	}
+
+	/** Close the tile pack */
+	public void close() throws IOException {
+		pack.close();
+	}
+}
@@ -0,0 +1,448 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A PNG decoder for map tiles.  It avoids the ImageIO plugin lookup,
+ * metadata and generic color conversion: image data is inflated in one
+ * pass, then unfiltered one row at a time and written straight into an int
+ * RGB (or premultiplied ARGB) raster.  Palette images can instead be
+ * decoded into an indexed-color raster.
+ *
+ * Only common tile formats are supported: non-interlaced, 8-bit RGB or
+ * RGBA, and palette images (1, 2, 4 or 8 bit).  Other formats (and images
+ * with color profiles or transparent color keys) return null, so the
+ * caller can fall back to ImageIO.  Grayscale images are left to ImageIO,
+ * which decodes them in a linear gray color space.
+ *
+ * @author Douglas Lau
+ */
+public final class PngDecoder {
+
+	/** Don't allow instantiation */
+	private PngDecoder() { }
+
+	/** PNG file signature */
+	static private final long SIGNATURE = 0x89504e470d0a1a0aL;
+
+	/** Chunk types */
+	static private final int IHDR = 0x49484452;
+	static private final int PLTE = 0x504c5445;
+	static private final int TRNS = 0x74524e53;
+	static private final int IDAT = 0x49444154;
+	static private final int IEND = 0x49454e44;
+	static private final int ICCP = 0x69434350;
+
+	/** Color types */
+	static private final int RGB = 2;
+	static private final int PALETTE = 3;
+	static private final int RGBA = 6;
+
+	/** Maximum image dimension */
+	static private final int MAX_SIZE = 4096;
+
+	/** Inflater for each decoding thread */
+	static private final ThreadLocal<Inflater> INFLATER =
+		new ThreadLocal<Inflater>()
+	{
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	/** Check if a buffer starts with a PNG signature */
+	static public boolean isPng(ByteBuffer b) {
+		return b.remaining() >= 8 && b.duplicate()
+		       .order(ByteOrder.BIG_ENDIAN).getLong(b.position()) ==
+		       SIGNATURE;
+	}
+
+	/** Decode a PNG image.
+	 * @param b Buffer containing PNG file (from position to limit).
+	 * @param indexed Decode palette images into an indexed-color raster.
+	 * @return Decoded image (TYPE_INT_RGB, TYPE_INT_ARGB_PRE or
+	 *         TYPE_BYTE_INDEXED / TYPE_BYTE_BINARY, as for ImageIO),
+	 *         or null if the format is not
+	 *         supported.
+	 * @throws IOException if the PNG is corrupt. */
+	static public BufferedImage decode(ByteBuffer b, boolean indexed)
+		throws IOException
+	{
+		ByteBuffer buf = b.duplicate().order(ByteOrder.BIG_ENDIAN);
+		if (!isPng(buf))
+			return null;
+		buf.position(buf.position() + 8);
+		Header hdr = null;
+		byte[] plte = null;
+		byte[] trns = null;
+		byte[] idat = new byte[buf.remaining()];
+		int n_idat = 0;
+		try {
+			while (true) {
+				int len = buf.getInt();
+				int type = buf.getInt();
+				if (len < 0 || len > buf.remaining() - 4)
+					throw new IOException("Bad PNG chunk");
+				switch (type) {
+				case IHDR:
+					hdr = new Header(buf);
+					if (!hdr.isSupported())
+						return null;
+					break;
+				case PLTE:
+					plte = new byte[len];
+					buf.get(plte);
+					break;
+				case TRNS:
+					if (hdr == null || hdr.ctype != PALETTE)
+						return null;
+					trns = new byte[len];
+					buf.get(trns);
+					break;
+				case ICCP:
+					return null;
+				case IDAT:
+					buf.get(idat, n_idat, len);
+					n_idat += len;
+					break;
+				case IEND:
+					return decode(hdr, plte, trns, idat,
+						n_idat, indexed);
+				default:
+					buf.position(buf.position() + len);
+				}
+				// Skip CRC
+				buf.getInt();
+			}
+		}
+		catch (RuntimeException e) {
+			// Buffer underflow, etc.
+			throw new IOException("Bad PNG: " + e);
+		}
+	}
+
+	/** PNG image header */
+	static private final class Header {
+		private final int width;
+		private final int height;
+		private final int depth;
+		private final int ctype;
+		private final int interlace;
+		private Header(ByteBuffer buf) {
+			width = buf.getInt();
+			height = buf.getInt();
+			depth = buf.get() & 0xFF;
+			ctype = buf.get() & 0xFF;
+			buf.get();	// compression
+			buf.get();	// filter
+			interlace = buf.get() & 0xFF;
+		}
+
+		/** Check if the format is supported */
+		private boolean isSupported() {
+			if (width <= 0 || height <= 0 || width > MAX_SIZE ||
+			    height > MAX_SIZE || interlace != 0)
+				return false;
+			if (ctype == PALETTE)
+				return depth == 1 || depth == 2 || depth == 4 ||
+				       depth == 8;
+			return depth == 8 && (ctype == RGB || ctype == RGBA);
+		}
+
+		/** Get the number of samples per pixel */
+		private int samples() {
+			switch (ctype) {
+			case RGB:
+				return 3;
+			case RGBA:
+				return 4;
+			default:
+				return 1;
+			}
+		}
+
+		/** Get the bytes per complete pixel (for filtering) */
+		private int bpp() {
+			return Math.max(1, depth * samples() / 8);
+		}
+
+		/** Get the bytes per row (without filter type) */
+		private int stride() {
+			return (width * depth * samples() + 7) / 8;
+		}
+	}
+
+	/** Decode image data */
+	static private BufferedImage decode(Header hdr, byte[] plte,
+		byte[] trns, byte[] idat, int n_idat, boolean indexed)
+		throws IOException
+	{
+		if (hdr == null || n_idat == 0)
+			throw new IOException("No PNG data");
+		if (hdr.ctype == PALETTE && plte == null)
+			throw new IOException("No PNG palette");
+		int[] lut = (hdr.ctype == PALETTE)
+		          ? createLookup(plte, trns)
+		          : null;
+		boolean alpha = (hdr.ctype == RGBA ||
+			(lut != null && hasAlpha(plte, trns)));
+		BufferedImage img;
+		if (indexed && hdr.ctype == PALETTE)
+			img = createIndexed(hdr, plte, trns);
+		else {
+			img = new BufferedImage(hdr.width, hdr.height, alpha
+				? BufferedImage.TYPE_INT_ARGB_PRE
+				: BufferedImage.TYPE_INT_RGB);
+		}
+		WritableRaster wr = img.getRaster();
+		int stride = hdr.stride();
+		int bpp = hdr.bpp();
+		byte[] raw = new byte[(stride + 1) * hdr.height];
+		byte[] prev = new byte[stride];
+		byte[] cur = new byte[stride];
+		int[] irow = new int[hdr.width];
+		byte[] brow = new byte[hdr.width];
+		boolean bytes = (img.getColorModel() instanceof
+			IndexColorModel);
+		Inflater inf = INFLATER.get();
+		inf.reset();
+		inf.setInput(idat, 0, n_idat);
+		try {
+			inflateFully(inf, raw);
+			for (int y = 0; y < hdr.height; y++) {
+				int off = y * (stride + 1);
+				System.arraycopy(raw, off + 1, cur, 0, stride);
+				unfilter(raw[off] & 0xFF, cur, prev, bpp);
+				if (bytes) {
+					unpackIndices(hdr, cur, brow);
+					wr.setDataElements(0, y, hdr.width, 1,
+						brow);
+				} else {
+					convertRow(hdr, lut, alpha, cur, irow);
+					wr.setDataElements(0, y, hdr.width, 1,
+						irow);
+				}
+				byte[] t = prev;
+				prev = cur;
+				cur = t;
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Bad PNG data: " +
+				e.getMessage());
+		}
+		finally {
+			inf.reset();
+		}
+		return img;
+	}
+
+	/** Inflate into an array, filling it */
+	static private void inflateFully(Inflater inf, byte[] b)
+		throws IOException, DataFormatException
+	{
+		int off = 0;
+		while (off < b.length) {
+			int n = inf.inflate(b, off, b.length - off);
+			if (n == 0 && (inf.finished() || inf.needsInput() ||
+			    inf.needsDictionary()))
+				throw new IOException("Truncated PNG data");
+			off += n;
+		}
+	}
+
+	/** Reverse a row filter */
+	static private void unfilter(int ft, byte[] cur, byte[] prev, int bpp)
+		throws IOException
+	{
+		int n = cur.length;
+		switch (ft) {
+		case 0:
+			break;
+		case 1:
+			for (int i = bpp; i < n; i++)
+				cur[i] += cur[i - bpp];
+			break;
+		case 2:
+			for (int i = 0; i < n; i++)
+				cur[i] += prev[i];
+			break;
+		case 3:
+			for (int i = 0; i < bpp; i++)
+				cur[i] += (prev[i] & 0xFF) >>> 1;
+			for (int i = bpp; i < n; i++) {
+				cur[i] += ((cur[i - bpp] & 0xFF) +
+					(prev[i] & 0xFF)) >>> 1;
+			}
+			break;
+		case 4:
+			for (int i = 0; i < bpp; i++)
+				cur[i] += prev[i];
+			for (int i = bpp; i < n; i++) {
+				cur[i] += paeth(cur[i - bpp] & 0xFF,
+					prev[i] & 0xFF, prev[i - bpp] & 0xFF);
+			}
+			break;
+		default:
+			throw new IOException("Bad PNG filter: " + ft);
+		}
+	}
+
+	/** Paeth predictor */
+	static private int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		else if (pb <= pc)
+			return b;
+		else
+			return c;
+	}
+
+	/** Premultiply a color component by alpha */
+	static private int premultiply(int c, int a) {
+		return (c * a + 127) / 255;
+	}
+
+	/** Create a pixel */
+	static private int pixel(int r, int g, int b, int a) {
+		if (a < 255) {
+			r = premultiply(r, a);
+			g = premultiply(g, a);
+			b = premultiply(b, a);
+		}
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+
+	/** Create a palette lookup table (premultiplied ARGB) */
+	static private int[] createLookup(byte[] plte, byte[] trns) {
+		int[] lut = new int[256];
+		for (int i = 0; i < plte.length / 3 && i < 256; i++) {
+			int a = (trns != null && i < trns.length)
+			      ? (trns[i] & 0xFF)
+			      : 255;
+			int j = i * 3;
+			lut[i] = pixel(plte[j] & 0xFF, plte[j + 1] & 0xFF,
+				plte[j + 2] & 0xFF, a);
+		}
+		return lut;
+	}
+
+	/** Check if a palette has any translucent entries */
+	static private boolean hasAlpha(byte[] plte, byte[] trns) {
+		if (trns != null) {
+			int n = Math.min(trns.length, plte.length / 3);
+			for (int i = 0; i < n; i++) {
+				if ((trns[i] & 0xFF) != 255)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/** Create an indexed-color image.  Images with fewer than 8 bits
+	 * per pixel are packed (TYPE_BYTE_BINARY), as ImageIO does. */
+	static private BufferedImage createIndexed(Header hdr, byte[] plte,
+		byte[] trns)
+	{
+		int n = Math.min(1 << hdr.depth, plte.length / 3);
+		byte[] r = new byte[n];
+		byte[] g = new byte[n];
+		byte[] b = new byte[n];
+		byte[] a = new byte[n];
+		for (int i = 0; i < n; i++) {
+			r[i] = plte[i * 3];
+			g[i] = plte[i * 3 + 1];
+			b[i] = plte[i * 3 + 2];
+			a[i] = (trns != null && i < trns.length)
+			     ? trns[i]
+			     : (byte) 0xFF;
+		}
+		IndexColorModel cm = new IndexColorModel(hdr.depth, n, r, g, b,
+			a);
+		return new BufferedImage(hdr.width, hdr.height, (hdr.depth < 8)
+			? BufferedImage.TYPE_BYTE_BINARY
+			: BufferedImage.TYPE_BYTE_INDEXED, cm);
+	}
+
+	/** Unpack palette indices from a row */
+	static private void unpackIndices(Header hdr, byte[] cur, byte[] out) {
+		int d = hdr.depth;
+		if (d == 8) {
+			System.arraycopy(cur, 0, out, 0, out.length);
+			return;
+		}
+		int ppb = 8 / d;
+		int mask = (1 << d) - 1;
+		for (int x = 0; x < out.length; x++) {
+			int sh = 8 - d * (x % ppb + 1);
+			out[x] = (byte) (((cur[x / ppb] & 0xFF) >>> sh) & mask);
+		}
+	}
+
+	/** Convert a row into int pixels */
+	static private void convertRow(Header hdr, int[] lut, boolean alpha,
+		byte[] cur, int[] out)
+	{
+		int w = out.length;
+		switch (hdr.ctype) {
+		case RGB:
+			for (int x = 0, i = 0; x < w; x++, i += 3) {
+				out[x] = ((cur[i] & 0xFF) << 16) |
+				         ((cur[i + 1] & 0xFF) << 8) |
+				         (cur[i + 2] & 0xFF);
+			}
+			break;
+		case RGBA:
+			for (int x = 0, i = 0; x < w; x++, i += 4) {
+				out[x] = pixel(cur[i] & 0xFF, cur[i + 1] & 0xFF,
+					cur[i + 2] & 0xFF, cur[i + 3] & 0xFF);
+			}
+			break;
+		case PALETTE:
+			if (hdr.depth == 8) {
+				for (int x = 0; x < w; x++)
+					out[x] = lut[cur[x] & 0xFF];
+			} else {
+				int d = hdr.depth;
+				int ppb = 8 / d;
+				int mask = (1 << d) - 1;
+				for (int x = 0; x < w; x++) {
+					int sh = 8 - d * (x % ppb + 1);
+					out[x] = lut[((cur[x / ppb] & 0xFF) >>>
+						sh) & mask];
+				}
+			}
+			if (!alpha) {
+				for (int x = 0; x < w; x++)
+					out[x] &= 0xFFFFFF;
+			}
+			break;
+		}
+	}
+}
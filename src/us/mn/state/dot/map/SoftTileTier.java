@@ -0,0 +1,131 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+
+/**
+ * A soft tile tier holds tiles evicted from a tile cache, using soft
+ * references.  While the heap has room, an evicted tile can be recovered
+ * without fetching (or decoding) it again; under memory pressure, the
+ * garbage collector reclaims them.  Entries for reclaimed tiles are
+ * removed as they are found on a reference queue.
+ *
+ * @author Douglas Lau
+ */
+public class SoftTileTier {
+
+	/** An evicted tile */
+	static public final class Tile {
+
+		/** Compressed tile file */
+		private final TempImageFile file;
+
+		/** Decoded tile image (null if not decoded) */
+		private final BufferedImage image;
+
+		/** Create an evicted tile */
+		private Tile(TempImageFile tif, BufferedImage img) {
+			file = tif;
+			image = img;
+		}
+
+		/** Get the compressed tile file */
+		public TempImageFile getFile() {
+			return file;
+		}
+
+		/** Get the decoded tile image (null if not decoded) */
+		public BufferedImage getImage() {
+			return image;
+		}
+	}
+
+	/** Soft reference to an evicted tile */
+	static private final class Ref extends SoftReference<Tile> {
+		private final long key;
+		private Ref(long k, Tile t, ReferenceQueue<Tile> q) {
+			super(t, q);
+			key = k;
+		}
+	}
+
+	/** Queue of references cleared by the garbage collector */
+	private final ReferenceQueue<Tile> queue = new ReferenceQueue<Tile>();
+
+	/** References by tile key */
+	private final LongHashMap<Ref> refs = new LongHashMap<Ref>();
+
+	/** Count of tiles reclaimed by the garbage collector */
+	private long n_reclaimed;
+
+	/** Remove entries for reclaimed tiles */
+	private void expunge() {
+		Ref r = (Ref) queue.poll();
+		while (r != null) {
+			if (refs.peek(r.key) == r) {
+				refs.remove(r.key);
+				n_reclaimed++;
+			}
+			r = (Ref) queue.poll();
+		}
+	}
+
+	/** Put an evicted tile, replacing any previous entry.
+	 * @param k Tile key.
+	 * @param tif Compressed tile file.
+	 * @param img Decoded tile image (null if not decoded). */
+	public synchronized void put(long k, TempImageFile tif,
+		BufferedImage img)
+	{
+		expunge();
+		refs.put(k, new Ref(k, new Tile(tif, img), queue));
+	}
+
+	/** Take an evicted tile out of the tier.
+	 * @param k Tile key.
+	 * @return Evicted tile, or null if not found (or reclaimed). */
+	public synchronized Tile take(long k) {
+		expunge();
+		Ref r = refs.remove(k);
+		return (r != null) ? r.get() : null;
+	}
+
+	/** Remove a tile, if present */
+	public synchronized void remove(long k) {
+		refs.remove(k);
+	}
+
+	/** Get the number of tiles (including some which may have been
+	 * reclaimed, but not yet expunged) */
+	public synchronized int size() {
+		expunge();
+		return refs.size();
+	}
+
+	/** Get the count of tiles reclaimed by the garbage collector */
+	public synchronized long getReclaimedCount() {
+		expunge();
+		return n_reclaimed;
+	}
+
+	/** Clear all tiles */
+	public synchronized void clear() {
+		expunge();
+		refs.clear();
+	}
+}
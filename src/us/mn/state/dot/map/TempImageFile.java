@@ -1,6 +1,6 @@
 /*
  * IRIS -- Intelligent Roadway Information System
- * Copyright (C) 2011  Minnesota Department of Transportation
+ * Copyright (C) 2011-2016  Minnesota Department of Transportation
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -17,26 +17,158 @@ package us.mn.state.dot.map;
 import java.awt.image.BufferedImage;
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.imageio.ImageIO;
 
 /**
- * A temporary image file.
+ * A temporary image file holds the compressed data of an image in a byte
+ * buffer, so it can be decoded any number of times.  Each decode reads the
+ * buffer through its own stream, so images can be decoded concurrently.
+ *
+ * The data can also be kept in a tile arena block, outside of the heap.
+ * Arena files are reference counted: the block is freed when the last
+ * reference is released, but not while an image is being decoded.
  *
  * @author Douglas Lau
  */
 public class TempImageFile {
 
-	/** Temporary image input stream */
-	protected final TempImageInputStream t_stream;
+	/** Image data (read-only) */
+	protected final ByteBuffer data;
+
+	/** Cache validators (may be null) */
+	private volatile TileValidator validator;
+
+	/** Arena containing the data (null for heap) */
+	private final TileArena arena;
+
+	/** Arena block containing the data (null for heap) */
+	private final TileArena.Block block;
+
+	/** Reference count (for arena files) */
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	/** Create a new temporary image file.
+	 * @param is Input stream to read.
+	 * @param len Expected length (bytes), or -1 if unknown. */
+	public TempImageFile(InputStream is, long len) throws IOException {
+		this(ByteBufferImageInputStream.readFully(is, len));
+	}
 
 	/** Create a new temporary image file */
 	public TempImageFile(InputStream is) throws IOException {
-		t_stream = new TempImageInputStream(is);
+		this(is, -1);
+	}
+
+	/** Create a temporary image file from cached data */
+	public TempImageFile(byte[] d) {
+		this(ByteBuffer.wrap(d));
+	}
+
+	/** Create a temporary image file from a buffer.  The data from the
+	 * buffer's position to its limit is used, without copying.
+	 * @param b Buffer (heap or direct). */
+	public TempImageFile(ByteBuffer b) {
+		this(b, null, null);
+	}
+
+	/** Create a temporary image file */
+	private TempImageFile(ByteBuffer b, TileArena a, TileArena.Block blk) {
+		data = b.slice().asReadOnlyBuffer();
+		arena = a;
+		block = blk;
+	}
+
+	/** Copy data into a new arena file.
+	 * @param a Tile arena.
+	 * @param b Buffer (data from position to limit is copied).
+	 * @return Arena file, or null if there is no room in the arena. */
+	static public TempImageFile copyTo(TileArena a, ByteBuffer b) {
+		TileArena.Block blk = a.allocate(b.remaining());
+		if (blk == null)
+			return null;
+		ByteBuffer d = blk.getBuffer();
+		d.put(b.duplicate());
+		d.flip();
+		return new TempImageFile(d, a, blk);
+	}
+
+	/** Check if the data is in an arena */
+	public boolean isArena() {
+		return block != null;
+	}
+
+	/** Retain a reference to the data.
+	 * @return false if the arena block was already freed. */
+	public boolean retain() {
+		if (block == null)
+			return true;
+		while (true) {
+			int n = refs.get();
+			if (n <= 0)
+				return false;
+			if (refs.compareAndSet(n, n + 1))
+				return true;
+		}
+	}
+
+	/** Release a reference to the data.  When an arena file has no more
+	 * references, its block is freed. */
+	public void release() {
+		if (block != null && refs.decrementAndGet() == 0)
+			arena.free(block);
+	}
+
+	/** Get the cached image data (read-only).  For an arena file, the
+	 * data must be retained while it is used. */
+	public ByteBuffer getData() {
+		return data.duplicate();
+	}
+
+	/** Get the cache validators (may be null) */
+	public TileValidator getValidator() {
+		return validator;
+	}
+
+	/** Set the cache validators */
+	public void setValidator(TileValidator v) {
+		validator = v;
+	}
+
+	/** Get the size of the file (bytes) */
+	public int size() {
+		return data.limit();
+	}
+
+	/** Decode a PNG image from the file with the built-in decoder.
+	 * @param indexed Decode palette images into an indexed-color raster.
+	 * @return Image, or null if the format is not supported by
+	 *         PngDecoder (or the arena block was freed).
+	 * @see PngDecoder#decode */
+	public BufferedImage decodePng(boolean indexed) throws IOException {
+		if (!retain())
+			return null;
+		try {
+			return PngDecoder.decode(data, indexed);
+		}
+		finally {
+			release();
+		}
 	}
 
-	/** Get image from the file */
+	/** Get image from the file.
+	 * @return Image, or null if it can't be decoded (or the arena
+	 *         block was freed). */
 	public BufferedImage getImage() throws IOException {
-		t_stream.seek(0);
-		return ImageIO.read(t_stream);
+		if (!retain())
+			return null;
+		try {
+			return ImageIO.read(
+				new ByteBufferImageInputStream(data));
+		}
+		finally {
+			release();
+		}
 	}
 }
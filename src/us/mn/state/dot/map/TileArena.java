@@ -0,0 +1,247 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A tile arena holds compressed tile data outside of the Java heap, so
+ * thousands of cached tiles don't add to old generation garbage collection.
+ * Memory is reserved in large direct buffer chunks (up to a capacity), and
+ * blocks are allocated first-fit from each chunk's free list.  Blocks must
+ * be freed explicitly; adjacent free extents are merged.
+ *
+ * @author Douglas Lau
+ */
+public class TileArena {
+
+	/** Default chunk size (bytes) */
+	static public final int CHUNK_BYTES = 4 * 1024 * 1024;
+
+	/** Allocation granularity (bytes) */
+	static private final int GRANULE = 64;
+
+	/** Round a length up to the allocation granularity */
+	static private int roundUp(int len) {
+		return (len + GRANULE - 1) & ~(GRANULE - 1);
+	}
+
+	/** A block of arena memory */
+	static public final class Block {
+
+		/** Chunk containing the block */
+		private final Chunk chunk;
+
+		/** Offset in chunk */
+		private final int offset;
+
+		/** Allocated length (rounded up) */
+		private final int length;
+
+		/** Buffer for the requested length */
+		private final ByteBuffer buffer;
+
+		/** Flag indicating the block was freed */
+		private boolean freed;
+
+		/** Create a new block */
+		private Block(Chunk c, int off, int alen, int len) {
+			chunk = c;
+			offset = off;
+			length = alen;
+			ByteBuffer b = c.buffer.duplicate();
+			b.limit(off + len);
+			b.position(off);
+			buffer = b.slice();
+		}
+
+		/** Get the block buffer.  It must not be used after the block
+		 * is freed. */
+		public ByteBuffer getBuffer() {
+			return buffer.duplicate();
+		}
+	}
+
+	/** A chunk of direct memory */
+	static private final class Chunk {
+
+		/** Direct buffer */
+		private final ByteBuffer buffer;
+
+		/** Free extents (offset to length) */
+		private final TreeMap<Integer, Integer> free =
+			new TreeMap<Integer, Integer>();
+
+		/** Create a new chunk */
+		private Chunk(int sz) {
+			buffer = ByteBuffer.allocateDirect(sz);
+			free.put(0, sz);
+		}
+
+		/** Allocate an extent (first fit).
+		 * @return Offset, or -1 if there is no room. */
+		private int allocate(int len) {
+			for (Map.Entry<Integer, Integer> e: free.entrySet()) {
+				int off = e.getKey();
+				int flen = e.getValue();
+				if (flen >= len) {
+					free.remove(off);
+					if (flen > len)
+						free.put(off + len, flen - len);
+					return off;
+				}
+			}
+			return -1;
+		}
+
+		/** Free an extent, merging with adjacent free extents */
+		private void free(int off, int len) {
+			Map.Entry<Integer, Integer> next =
+				free.higherEntry(off);
+			if (next != null && off + len == next.getKey()) {
+				free.remove(next.getKey());
+				len += next.getValue();
+			}
+			Map.Entry<Integer, Integer> prev =
+				free.lowerEntry(off);
+			if (prev != null &&
+			    prev.getKey() + prev.getValue() == off)
+			{
+				off = prev.getKey();
+				len += prev.getValue();
+			}
+			free.put(off, len);
+		}
+	}
+
+	/** Maximum bytes to reserve */
+	private final long capacity;
+
+	/** Chunk size (bytes) */
+	private final int chunk_size;
+
+	/** Reserved chunks */
+	private final ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+
+	/** Number of allocated blocks */
+	private int n_blocks;
+
+	/** Bytes allocated to blocks (rounded up) */
+	private long allocated;
+
+	/** Count of failed allocations */
+	private long n_failed;
+
+	/** Create a new tile arena.
+	 * @param cap Maximum bytes to reserve.
+	 * @param cs Chunk size (bytes). */
+	public TileArena(long cap, int cs) {
+		capacity = cap;
+		chunk_size = roundUp(cs);
+	}
+
+	/** Create a new tile arena with the default chunk size.
+	 * @param cap Maximum bytes to reserve. */
+	public TileArena(long cap) {
+		this(cap, CHUNK_BYTES);
+	}
+
+	/** Allocate a block.
+	 * @param len Length (bytes).
+	 * @return Block, or null if there is no room (or it is larger than
+	 *         a chunk). */
+	public synchronized Block allocate(int len) {
+		int alen = roundUp(Math.max(len, 1));
+		if (alen <= chunk_size) {
+			for (Chunk c: chunks) {
+				int off = c.allocate(alen);
+				if (off >= 0)
+					return newBlock(c, off, alen, len);
+			}
+			if ((long) (chunks.size() + 1) * chunk_size <=
+			    capacity)
+			{
+				Chunk c = new Chunk(chunk_size);
+				chunks.add(c);
+				return newBlock(c, c.allocate(alen), alen, len);
+			}
+		}
+		n_failed++;
+		return null;
+	}
+
+	/** Create a new block */
+	private Block newBlock(Chunk c, int off, int alen, int len) {
+		n_blocks++;
+		allocated += alen;
+		return new Block(c, off, alen, len);
+	}
+
+	/** Free a block.  Freeing a block more than once has no effect. */
+	public synchronized void free(Block b) {
+		if (!b.freed) {
+			b.freed = true;
+			b.chunk.free(b.offset, b.length);
+			n_blocks--;
+			allocated -= b.length;
+		}
+	}
+
+	/** Get the maximum bytes to reserve */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/** Get the bytes reserved in chunks */
+	public synchronized long getReserved() {
+		return (long) chunks.size() * chunk_size;
+	}
+
+	/** Get the bytes allocated to blocks */
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+
+	/** Get the number of allocated blocks */
+	public synchronized int getBlockCount() {
+		return n_blocks;
+	}
+
+	/** Get the count of failed allocations */
+	public synchronized long getFailedCount() {
+		return n_failed;
+	}
+
+	/** Get the largest free extent (bytes) */
+	public synchronized int getLargestFree() {
+		int lf = 0;
+		for (Chunk c: chunks) {
+			for (int len: c.free.values())
+				lf = Math.max(lf, len);
+		}
+		return lf;
+	}
+
+	/** Get the fragmentation of free space in reserved chunks.  This is
+	 * 0 when all free space is in one extent, approaching 1 as it is
+	 * split into many small extents. */
+	public synchronized double getFragmentation() {
+		long fr = getReserved() - allocated;
+		return (fr > 0) ? 1 - (double) getLargestFree() / fr : 0;
+	}
+}
@@ -1,6 +1,6 @@
 /*
  * IRIS -- Intelligent Roadway Information System
- * Copyright (C) 2011  Minnesota Department of Transportation
+ * Copyright (C) 2011-2016  Minnesota Department of Transportation
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -15,98 +15,1008 @@
 package us.mn.state.dot.map;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A cache of image tiles.
+ * A cache of image tiles.  Tiles are kept in two tiers: compressed image
+ * files for every cached tile, and decoded images (in a screen-compatible
+ * format) for the most recently used tiles.  Each tier is a concurrent
+ * CLOCK cache with its own byte budget, so reading tiles while painting
+ * never waits for tiles being added or evicted by fetch threads.  Tiles
+ * older than a maximum age are
+ * revalidated with a conditional request, so an unchanged tile costs only
+ * a "not modified" response.  Until then (or if the server can't be
+ * reached) the expired tile is still used.
+ *
+ * Tiles are decoded by worker threads, when they are looked up or
+ * prepared.  Getting a tile never decodes, so painting only draws decoded
+ * images.
+ *
+ * A cache can be shared by several maps, each using its own view.  Each
+ * view has a viewport size and statistics, and the tier limits grow with
+ * the number of views.
+ *
+ * Tiles evicted from the memory tiers move to a soft tier, where they can
+ * be recovered without fetching (or decoding) them again, until the
+ * garbage collector needs the memory.
+ *
+ * Compressed tiles can be kept in an off-heap tile arena.  Arena tiles are
+ * freed explicitly when evicted, so they don't move to the soft tier.
+ *
+ * Optionally, palette tiles can be kept as indexed-color images in the
+ * decoded tier, using a quarter of the memory of screen-compatible images.
+ * These are expanded as they are drawn into the tile mosaic, which holds
+ * only the tiles on screen.
  *
  * @author Douglas Lau
  */
 public class TileCache {
 
-	/** FIFO of tile names in cache */
-	protected final LinkedList<String> tiles = new LinkedList<String>();
+	/** Special budget value to size a tier from the map viewport */
+	static public final long AUTO_SIZE = -1;
+
+	/** Estimated size of one compressed tile (bytes) */
+	static public final int COMPRESSED_TILE_BYTES = 16 * 1024;
+
+	/** Size of one decoded 256x256 tile (bytes) */
+	static public final int DECODED_TILE_BYTES = 256 * 256 * 4;
 
-	/** Hash of tile names to image files */
-	protected final HashMap<String, TempImageFile> tile_hash =
-		new HashMap<String, TempImageFile>();
+	/** Default maximum age before revalidating a tile (ms) */
+	static public final long MAX_AGE_MS = 60 * 60 * 1000;
 
-	/** Image fetcher */
-	protected final ImageFetcher fetcher;
+	/** Number of viewports of decoded tiles to keep when auto-sizing */
+	static private final int AUTO_DECODED_VIEWS = 2;
 
-	/** Size of cache (number of tiles) */
-	protected final int size;
+	/** Number of viewports of compressed tiles to keep when auto-sizing */
+	static private final int AUTO_COMPRESSED_VIEWS = 16;
 
-	/** Get the size of cache */
-	public int getSize() {
-		return size;
+	/** Get the number of tiles needed to cover a viewport */
+	static public int viewportTiles(int w, int h) {
+		return (w / 256 + 2) * (h / 256 + 2);
 	}
 
-	/** Create a new tile cache */
-	public TileCache(ImageFetcher f, int sz) {
-		fetcher = f;
-		size = sz;
+	/** Get the number of bytes used by an image raster */
+	static public long imageBytes(BufferedImage img) {
+		DataBuffer db = img.getRaster().getDataBuffer();
+		long bits = (long) db.getSize() * db.getNumBanks() *
+			DataBuffer.getDataTypeSize(db.getDataType());
+		return bits / 8;
 	}
 
-	/** Purge the oldest image from the cache */
-	protected void purgeOldestImage() {
-		removeFirst();
+	/** Lock for views and tier limits */
+	private final Object lock = new Object();
+
+	/** Compressed tier */
+	private final ClockCache<TempImageFile> tile_hash =
+		new ClockCache<TempImageFile>();
+
+	/** Decoded tier */
+	private final ClockCache<BufferedImage> decoded_hash =
+		new ClockCache<BufferedImage>();
+
+	/** Soft tier for evicted tiles */
+	private final SoftTileTier soft = new SoftTileTier();
+
+	/** Listener to move evicted compressed tiles (and their decoded
+	 * images) to the soft tier, or free them from the arena */
+	private final ClockCache.Listener<TempImageFile> evict_listener =
+		new ClockCache.Listener<TempImageFile>()
+	{
+		public void evicted(long k, TempImageFile tif) {
+			c_evicted.incrementAndGet();
+			BufferedImage img = decoded_hash.remove(k);
+			if (tif.isArena()) {
+				soft.remove(k);
+				tif.release();
+			} else
+				soft.put(k, tif, img);
+		}
+	};
+
+	/** Listener to move evicted decoded tiles to the soft tier */
+	private final ClockCache.Listener<BufferedImage> decoded_listener =
+		new ClockCache.Listener<BufferedImage>()
+	{
+		public void evicted(long k, BufferedImage img) {
+			d_evicted.incrementAndGet();
+			TempImageFile tif = tile_hash.peek(k);
+			if (tif != null)
+				soft.put(k, tif, img);
+		}
+	};
+
+	/** Off-heap arena for compressed tiles (null for heap) */
+	private volatile TileArena arena;
+
+	/** Set the arena for compressed tiles.  Tiles which don't fit in
+	 * the arena are kept on the heap.  Must be set before any tiles are
+	 * cached.
+	 * @param a Tile arena (null for heap). */
+	public void setArena(TileArena a) {
+		arena = a;
+	}
+
+	/** Get the arena for compressed tiles (null for heap) */
+	public TileArena getArena() {
+		return arena;
 	}
 
-	/** Remove a tile from the cache */
-	protected TempImageFile removeFirst() {
-		synchronized(tile_hash) {
-			String name = tiles.removeFirst();
-			return tile_hash.remove(name);
+	/** Copy a tile file into the arena, if there is room */
+	private TempImageFile toArena(TempImageFile tif) {
+		TileArena a = arena;
+		if (a == null || tif.isArena())
+			return tif;
+		TempImageFile atif = TempImageFile.copyTo(a, tif.getData());
+		if (atif == null)
+			return tif;
+		atif.setValidator(tif.getValidator());
+		return atif;
+	}
+
+	/** Put a tile file into the compressed tier, releasing any file
+	 * it replaces */
+	private void putFile(long k, TempImageFile tif) {
+		TempImageFile otif = tile_hash.put(k, tif, tif.size());
+		if (otif != null && otif != tif)
+			otif.release();
+	}
+
+	/** Pending tile lookups (protected by itself) */
+	private final LongHashMap<FutureTask<Void>> pending =
+		new LongHashMap<FutureTask<Void>>();
+
+	/** Tile source */
+	protected final TileSource source;
+
+	/** Get the tile source */
+	public TileSource getSource() {
+		return source;
+	}
+
+	/** Time to fetch tiles from the source */
+	private final LatencyHistogram fetch_time = new LatencyHistogram();
+
+	/** Time to decode tiles */
+	private final LatencyHistogram decode_time = new LatencyHistogram();
+
+	/** Count of tiles fetched from the source (not including "not
+	 * modified" responses) */
+	private final AtomicLong n_fetched = new AtomicLong();
+
+	/** Count of "not modified" responses */
+	private final AtomicLong n_not_modified = new AtomicLong();
+
+	/** Count of tiles found in the disk tier */
+	private final AtomicLong n_disk_hits = new AtomicLong();
+
+	/** Total bytes of tiles fetched from the source */
+	private final AtomicLong fetched_bytes = new AtomicLong();
+
+	/** Count of tiles evicted from the compressed tier */
+	private final AtomicLong c_evicted = new AtomicLong();
+
+	/** Count of tiles evicted from the decoded tier */
+	private final AtomicLong d_evicted = new AtomicLong();
+
+	/** Count of tiles recovered from the soft tier */
+	private final AtomicLong n_soft_hits = new AtomicLong();
+
+	/** Count of tiles not found in the soft tier */
+	private final AtomicLong n_soft_misses = new AtomicLong();
+
+	/** Negative cache of failed lookups */
+	private final TileFailures failures = new TileFailures();
+
+	/** Get the negative cache of failed lookups */
+	public TileFailures getFailures() {
+		return failures;
+	}
+
+	/** Check if lookups for a tile are blocked by a recent failure (of
+	 * the tile or its host).  This is called while painting, so the tile
+	 * source is not consulted; hosts are resolved by fetch workers. */
+	public boolean isBlocked(long k) {
+		return failures.isBlocked(k);
+	}
+
+	/** Get the time when lookups for a tile will no longer be blocked.
+	 * @return Time to allow retry (ms), or 0 for no failure. */
+	public long getRetryTime(long k) {
+		return failures.getRetryTime(k);
+	}
+
+	/** Disk tier (null for none) */
+	private volatile TilePack pack;
+
+	/** Set the disk tier.
+	 * @param p Tile pack for persistent storage (null for none). */
+	public void setDiskCache(TilePack p) {
+		pack = p;
+	}
+
+	/** Get the disk tier */
+	private TilePack getDiskCache() {
+		return pack;
+	}
+
+	/** Maximum age before revalidating a tile (ms) */
+	private volatile long max_age = MAX_AGE_MS;
+
+	/** Flag to keep palette tiles as indexed-color images */
+	private volatile boolean indexed_color;
+
+	/** Set whether palette tiles are kept as indexed-color images in the
+	 * decoded tier (instead of screen-compatible images).  Tiles
+	 * decoded before this is set are not affected. */
+	public void setIndexedColor(boolean ic) {
+		indexed_color = ic;
+	}
+
+	/** Check whether palette tiles are kept as indexed-color images */
+	public boolean isIndexedColor() {
+		return indexed_color;
+	}
+
+	/** Set the maximum age before revalidating a tile.
+	 * @param ms Maximum age (ms), or Long.MAX_VALUE to never
+	 *           revalidate. */
+	public void setMaxAge(long ms) {
+		max_age = ms;
+	}
+
+	/** Get the maximum age before revalidating a tile (ms) */
+	public long getMaxAge() {
+		return max_age;
+	}
+
+	/** Check if a cached tile file has expired */
+	private boolean isExpired(TempImageFile tif) {
+		TileValidator v = tif.getValidator();
+		return v == null ||
+		       v.isExpired(max_age, System.currentTimeMillis());
+	}
+
+	/** Check if a cached tile has expired, and should be revalidated.
+	 * @param k Tile key.
+	 * @return true if the tile is cached, but expired. */
+	public boolean isExpired(long k) {
+		TempImageFile tif = tile_hash.peek(k);
+		return tif != null && isExpired(tif);
+	}
+
+	/** Budget for compressed tier (bytes, or AUTO_SIZE) */
+	private final long c_budget;
+
+	/** Budget for decoded tier (bytes, or AUTO_SIZE) */
+	private final long d_budget;
+
+	/** Current compressed tier limit (bytes) */
+	private volatile long c_limit;
+
+	/** Current decoded tier limit (bytes) */
+	private volatile long d_limit;
+
+	/** Number of tiles covering the viewport, when there are no views */
+	private int n_view = viewportTiles(1024, 768);
+
+	/** Views of the cache (protected by lock) */
+	private final ArrayList<View> views = new ArrayList<View>();
+
+	/** Lookup result: tile was already cached */
+	static private final int LOOKUP_CACHED = 0;
+
+	/** Lookup result: joined a pending lookup for the same tile */
+	static private final int LOOKUP_JOINED = 1;
+
+	/** Lookup result: tile was fetched */
+	static private final int LOOKUP_FETCHED = 2;
+
+	/** A view of the cache, for one map.  Each view has its own viewport
+	 * size (for auto-sized tiers) and statistics. */
+	public final class View {
+
+		/** Number of tiles covering the viewport (protected by lock) */
+		private int n_tiles = viewportTiles(1024, 768);
+
+		/** Count of tiles found in the cache */
+		private final AtomicLong n_hits = new AtomicLong();
+
+		/** Count of tiles not found in the cache */
+		private final AtomicLong n_misses = new AtomicLong();
+
+		/** Count of tiles fetched for this view */
+		private final AtomicLong n_fetches = new AtomicLong();
+
+		/** Count of lookups which joined another pending lookup */
+		private final AtomicLong n_shared = new AtomicLong();
+
+		/** Create a new view */
+		private View() { }
+
+		/** Get the cache */
+		public TileCache getCache() {
+			return TileCache.this;
+		}
+
+		/** Set the viewport size, for auto-sized tiers.
+		 * @param w Viewport width (pixels).
+		 * @param h Viewport height (pixels). */
+		public void setViewport(int w, int h) {
+			int n = viewportTiles(w, h);
+			synchronized (lock) {
+				if (n == n_tiles)
+					return;
+				n_tiles = n;
+				updateLimits();
+			}
+			purge();
+		}
+
+		/** Get a decoded tile from the cache.
+		 * @see TileCache#getTile */
+		public BufferedImage getTile(long k) {
+			BufferedImage img = TileCache.this.getTile(k);
+			if (img != null)
+				n_hits.incrementAndGet();
+			else
+				n_misses.incrementAndGet();
+			return img;
+		}
+
+		/** Lookup a tile and put it in the cache.
+		 * @see TileCache#lookupTile(long, boolean) */
+		public void lookupTile(long k, boolean decode)
+			throws IOException
+		{
+			switch (lookup(k, decode)) {
+			case LOOKUP_FETCHED:
+				n_fetches.incrementAndGet();
+				break;
+			case LOOKUP_JOINED:
+				n_shared.incrementAndGet();
+				break;
+			}
+		}
+
+		/** Get the count of tiles found in the cache */
+		public long getHits() {
+			return n_hits.get();
+		}
+
+		/** Get the count of tiles not found in the cache */
+		public long getMisses() {
+			return n_misses.get();
+		}
+
+		/** Get the count of tiles fetched for this view */
+		public long getFetches() {
+			return n_fetches.get();
+		}
+
+		/** Get the count of lookups which joined a pending lookup
+		 * (possibly from another view) */
+		public long getShared() {
+			return n_shared.get();
+		}
+
+		/** Release the view */
+		public void release() {
+			synchronized (lock) {
+				if (!views.remove(this))
+					return;
+				updateLimits();
+			}
+			purge();
 		}
 	}
 
-	/** Get the named tile from the cache */
-	public BufferedImage getTile(String n) throws IOException {
-		TempImageFile tif = getTempImageFile(n);
-		if(tif != null)
-			return tif.getImage();
-		else
+	/** Add a view of the cache */
+	public View addView() {
+		View v = new View();
+		synchronized (lock) {
+			views.add(v);
+			updateLimits();
+		}
+		purge();
+		return v;
+	}
+
+	/** Get the number of views of the cache */
+	public int getViewCount() {
+		synchronized (lock) {
+			return views.size();
+		}
+	}
+
+	/** Create a new tile cache.
+	 * @param s Tile source.
+	 * @param cb Byte budget for compressed tiles (or AUTO_SIZE).
+	 * @param db Byte budget for decoded tiles (or AUTO_SIZE). */
+	public TileCache(TileSource s, long cb, long db) {
+		source = s;
+		c_budget = cb;
+		d_budget = db;
+		updateLimits();
+	}
+
+	/** Create a new tile cache.
+	 * @param s Tile source.
+	 * @param n Number of compressed tiles to cache. */
+	public TileCache(TileSource s, int n) {
+		this(s, (long) n * COMPRESSED_TILE_BYTES, AUTO_SIZE);
+	}
+
+	/** Set the viewport size, for auto-sized tiers.  This is only used
+	 * when the cache has no views.
+	 * @param w Viewport width (pixels).
+	 * @param h Viewport height (pixels). */
+	public void setViewport(int w, int h) {
+		int n = viewportTiles(w, h);
+		synchronized (lock) {
+			if (n == n_view)
+				return;
+			n_view = n;
+			updateLimits();
+		}
+		purge();
+	}
+
+	/** Update tier limits from budgets and views.  Budgets are per
+	 * view; auto-sized tiers use the total of all view viewports.  Must
+	 * be called with lock held; purge afterwards (without the lock). */
+	private void updateLimits() {
+		int n = views.isEmpty() ? n_view : 0;
+		for (View v: views)
+			n += v.n_tiles;
+		int n_views = Math.max(1, views.size());
+		c_limit = (c_budget != AUTO_SIZE)
+		        ? c_budget * n_views
+		        : (long) n * AUTO_COMPRESSED_VIEWS *
+		          COMPRESSED_TILE_BYTES;
+		d_limit = (d_budget != AUTO_SIZE)
+		        ? d_budget * n_views
+		        : (long) n * AUTO_DECODED_VIEWS * DECODED_TILE_BYTES;
+	}
+
+	/** Purge both tiers to their limits */
+	private void purge() {
+		purgeCompressed();
+		purgeDecoded();
+	}
+
+	/** Get the compressed tier limit (bytes) */
+	public long getCompressedLimit() {
+		return c_limit;
+	}
+
+	/** Get the decoded tier limit (bytes) */
+	public long getDecodedLimit() {
+		return d_limit;
+	}
+
+	/** Get the bytes used by the compressed tier */
+	public long getCompressedBytes() {
+		return tile_hash.getBytes();
+	}
+
+	/** Get the bytes used by the decoded tier */
+	public long getDecodedBytes() {
+		return decoded_hash.getBytes();
+	}
+
+	/** Purge compressed tiles (and their decoded images) over the
+	 * limit */
+	private void purgeCompressed() {
+		tile_hash.evict(c_limit, evict_listener);
+	}
+
+	/** Purge decoded tiles over the limit */
+	private void purgeDecoded() {
+		decoded_hash.evict(d_limit, decoded_listener);
+	}
+
+	/** Get the number of tiles in the compressed tier */
+	public int getCompressedCount() {
+		return tile_hash.size();
+	}
+
+	/** Get the number of tiles in the decoded tier */
+	public int getDecodedCount() {
+		return decoded_hash.size();
+	}
+
+	/** Get the count of tiles evicted from the compressed tier */
+	public long getCompressedEvictions() {
+		return c_evicted.get();
+	}
+
+	/** Get the count of tiles evicted from the decoded tier */
+	public long getDecodedEvictions() {
+		return d_evicted.get();
+	}
+
+	/** Get the number of tiles in the soft tier */
+	public int getSoftCount() {
+		return soft.size();
+	}
+
+	/** Get the count of tiles recovered from the soft tier */
+	public long getSoftHits() {
+		return n_soft_hits.get();
+	}
+
+	/** Get the count of tiles which were not found in the soft tier,
+	 * and had to be decoded or fetched */
+	public long getSoftMisses() {
+		return n_soft_misses.get();
+	}
+
+	/** Get the count of soft tier tiles reclaimed by the garbage
+	 * collector */
+	public long getSoftReclaimed() {
+		return soft.getReclaimedCount();
+	}
+
+	/** Get the time to fetch tiles from the source (including reading
+	 * the response) */
+	public LatencyHistogram getFetchTime() {
+		return fetch_time;
+	}
+
+	/** Get the time to decode tiles */
+	public LatencyHistogram getDecodeTime() {
+		return decode_time;
+	}
+
+	/** Get the count of tiles fetched from the source */
+	public long getFetchedCount() {
+		return n_fetched.get();
+	}
+
+	/** Get the count of "not modified" responses */
+	public long getNotModifiedCount() {
+		return n_not_modified.get();
+	}
+
+	/** Get the count of tiles found in the disk tier */
+	public long getDiskHits() {
+		return n_disk_hits.get();
+	}
+
+	/** Get the total bytes of tiles fetched from the source */
+	public long getFetchedBytes() {
+		return fetched_bytes.get();
+	}
+
+	/** Get a decoded tile from the cache.  This never decodes (or
+	 * locks the soft tier), so it can be called while painting.  A tile
+	 * which is not in the decoded tier must be prepared by a worker
+	 * thread with prepareTile first, which also recovers decoded images
+	 * from the soft tier.
+	 * @param k Tile key.
+	 * @return Decoded tile image, or null. */
+	public BufferedImage getTile(long k) {
+		// Keep compressed tier recency up to date
+		tile_hash.get(k);
+		return decoded_hash.get(k);
+	}
+
+	/** Prepare a cached tile for drawing, by decoding it into the
+	 * decoded tier (if it is not already there).
+	 * @param k Tile key.
+	 * @return true if the tile is decoded, or false if it is not in
+	 *         the compressed tier. */
+	public boolean prepareTile(long k) throws IOException {
+		if (decoded_hash.containsKey(k))
+			return true;
+		TempImageFile tif = tile_hash.peek(k);
+		if (tif == null)
+			return false;
+		BufferedImage img = recoverImage(k, tif);
+		if (img == null)
+			img = decodeTile(tif);
+		if (img != null) {
+			putDecoded(k, tif, img);
+			return true;
+		} else
+			return false;
+	}
+
+	/** Recover a decoded image from the soft tier.
+	 * @param k Tile key.
+	 * @param tif Cached tile file.
+	 * @return Decoded image of tif, or null. */
+	private BufferedImage recoverImage(long k, TempImageFile tif) {
+		SoftTileTier.Tile st = soft.take(k);
+		if (st != null && st.getFile() == tif &&
+		    st.getImage() != null)
+		{
+			n_soft_hits.incrementAndGet();
+			return st.getImage();
+		} else {
+			n_soft_misses.incrementAndGet();
 			return null;
+		}
 	}
 
-	/** Get the named temp image file from the cache */
-	protected TempImageFile getTempImageFile(String n) {
-		synchronized(tile_hash) {
-			if(tile_hash.containsKey(n))
-				return tile_hash.get(n);
-			else
+	/** Recover a tile from the soft tier into the memory tiers.
+	 * @param k Tile key.
+	 * @param decode Flag to put the tile into the decoded tier.
+	 * @return Recovered tile file, or null. */
+	private TempImageFile recoverTile(long k, boolean decode)
+		throws IOException
+	{
+		SoftTileTier.Tile st = soft.take(k);
+		// Arena files are freed when evicted
+		if (st == null || st.getFile().isArena()) {
+			n_soft_misses.incrementAndGet();
+			return null;
+		}
+		n_soft_hits.incrementAndGet();
+		TempImageFile tif = st.getFile();
+		BufferedImage img = st.getImage();
+		if (img == null && decode)
+			img = decodeTile(tif);
+		putFile(k, tif);
+		purgeCompressed();
+		if (img != null)
+			putDecoded(k, tif, img);
+		return tif;
+	}
+
+	/** Get a tile from the decoded tier only.  This never decodes, so
+	 * it is cheap enough for drawing fallback tiles.
+	 * @param k Tile key.
+	 * @return Decoded tile image, or null. */
+	public BufferedImage peekTile(long k) {
+		return decoded_hash.get(k);
+	}
+
+	/** Decode a tile, recording the decode time */
+	private BufferedImage decodeTile(TempImageFile tif) throws IOException {
+		long start = System.nanoTime();
+		BufferedImage img = decodeImage(tif);
+		decode_time.recordSince(start);
+		return img;
+	}
+
+	/** Decode an image file into a screen-compatible image.  Palette
+	 * images are not converted when indexed color is enabled.  PNG files
+	 * are decoded with PngDecoder, falling back to ImageIO for formats
+	 * it doesn't support. */
+	protected BufferedImage decodeImage(TempImageFile tif)
+		throws IOException
+	{
+		BufferedImage img = tif.decodePng(indexed_color);
+		if (img == null)
+			img = tif.getImage();
+		if (img == null)
+			return null;
+		else if (indexed_color &&
+		         img.getColorModel() instanceof IndexColorModel)
+			return img;
+		else
+			return CompatibleImage.convert(img);
+	}
+
+	/** Put a decoded image into the decoded tier.
+	 * @param k Tile key.
+	 * @param tif Compressed tile file which was decoded.
+	 * @param img Decoded image. */
+	private void putDecoded(long k, TempImageFile tif, BufferedImage img) {
+		// Tile may have been purged or replaced while decoding
+		if (tile_hash.peek(k) != tif)
+			return;
+		decoded_hash.put(k, img, imageBytes(img));
+		// Check again, in case it was purged before the put
+		if (tile_hash.peek(k) != tif)
+			decoded_hash.remove(k);
+		purgeDecoded();
+	}
+
+	/** Lookup a tile and put it in the cache.  If a lookup for the same
+	 * tile is already in progress, wait for it to complete instead of
+	 * fetching the tile again.  All callers get the same result.  If the
+	 * tile is cached, but expired, it is revalidated. */
+	public void lookupTile(long k) throws IOException {
+		lookupTile(k, true);
+	}
+
+	/** Check if a tile is in the cache */
+	public boolean contains(long k) {
+		return tile_hash.containsKey(k);
+	}
+
+	/** Lookup a tile and put it in the cache.
+	 * @param k Tile key.
+	 * @param decode Flag to put the tile into the decoded tier (false
+	 *               for prefetching). */
+	public void lookupTile(long k, boolean decode) throws IOException {
+		lookup(k, decode);
+	}
+
+	/** Lookup a tile and put it in the cache.
+	 * @return LOOKUP_CACHED, LOOKUP_JOINED or LOOKUP_FETCHED. */
+	private int lookup(long k, boolean decode) throws IOException {
+		TempImageFile c = tile_hash.peek(k);
+		if (c != null && !isExpired(c))
+			return lookupCached(k, decode);
+		FutureTask<Void> task;
+		boolean owner = false;
+		synchronized (pending) {
+			task = pending.get(k);
+			// Check again, since tiles are put into the cache
+			// before the pending lookup is removed
+			TempImageFile cached = tile_hash.peek(k);
+			if (task == null &&
+			    (cached == null || isExpired(cached)))
+			{
+				task = createFetch(k, decode, cached);
+				pending.put(k, task);
+				owner = true;
+			}
+		}
+		if (task == null)
+			return lookupCached(k, decode);
+		if (owner) {
+			try {
+				task.run();
+			}
+			finally {
+				synchronized (pending) {
+					pending.remove(k);
+				}
+			}
+		}
+		waitFor(task);
+		if (owner)
+			return LOOKUP_FETCHED;
+		// The joined lookup may not have decoded the tile
+		if (decode)
+			prepareTile(k);
+		return LOOKUP_JOINED;
+	}
+
+	/** Create a task to fetch a tile into the cache */
+	private FutureTask<Void> createFetch(final long k, final boolean decode,
+		final TempImageFile cached)
+	{
+		return new FutureTask<Void>(new Callable<Void>() {
+			public Void call() throws IOException {
+				fetchTile(k, decode, cached);
 				return null;
+			}
+		});
+	}
+
+	/** Lookup a tile which is cached (and not expired).
+	 * @param k Tile key.
+	 * @param decode Flag to put the tile into the decoded tier.
+	 * @return LOOKUP_CACHED. */
+	private int lookupCached(long k, boolean decode) throws IOException {
+		if (decode)
+			prepareTile(k);
+		return LOOKUP_CACHED;
+	}
+
+	/** Wait for a pending tile lookup to complete */
+	static private void waitFor(FutureTask<Void> task) throws IOException {
+		try {
+			task.get();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		}
+		catch (ExecutionException e) {
+			Throwable c = e.getCause();
+			if (c instanceof IOException)
+				throw (IOException) c;
+			else if (c instanceof RuntimeException)
+				throw (RuntimeException) c;
+			else if (c instanceof Error)
+				throw (Error) c;
+			else
+				throw new IOException(c);
+		}
+	}
+
+	/** Get the number of pending tile lookups */
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/** Fetch a tile and put it in the cache.  The soft tier and disk
+	 * tier are checked first; tiles fetched from the network are stored
+	 * in the disk tier.  An expired tile from the disk tier is used as
+	 * is, so that drawing it does not wait for the server; it is
+	 * revalidated on a later lookup.
+	 * @param k Tile key.
+	 * @param decode Flag to put the tile into the decoded tier.
+	 * @param cached Expired tile to revalidate (null if not cached). */
+	private void fetchTile(long k, boolean decode, TempImageFile cached)
+		throws IOException
+	{
+		if (cached == null) {
+			cached = recoverTile(k, decode);
+			if (cached != null && !isExpired(cached))
+				return;
+		}
+		TempImageFile tif;
+		if (cached != null)
+			tif = refreshTile(k, cached);
+		else {
+			tif = lookupDisk(k);
+			if (tif == null)
+				tif = refreshTile(k, null);
 		}
+		// Not modified (or stale) tiles are already in the cache
+		if (tif == cached) {
+			if (decode)
+				prepareTile(k);
+			return;
+		}
+		// Decode on the calling (worker) thread, so painting the
+		// tile does not need to decode it
+		BufferedImage img = decode ? decodeTile(tif) : null;
+		tif = toArena(tif);
+		// Update the tiers last so that exceptions cannot leave us in
+		// an inconsistent state
+		putFile(k, tif);
+		decoded_hash.remove(k);
+		soft.remove(k);
+		purgeCompressed();
+		if (img != null)
+			putDecoded(k, tif, img);
+	}
+
+	/** Refresh a tile from the source.  Tiles from a remote host are
+	 * stored in the disk tier, unless not modified (the pack is
+	 * append-only, so that would store the whole tile again).  If the
+	 * host can't be reached, an expired copy is used until a later
+	 * lookup.
+	 * @param k Tile key.
+	 * @param tif Expired copy of tile (null for none).
+	 * @return Current tile file (tif if not modified). */
+	private TempImageFile refreshTile(long k, TempImageFile tif)
+		throws IOException
+	{
+		String host = source.getHost(k);
+		TempImageFile ftif;
+		try {
+			if (failures.isHostBlocked(host)) {
+				failures.hostBlocked(k, host);
+				throw new IOException("Host backing off: " +
+					host);
+			}
+			ftif = fetchImage(k, tif, host);
+		}
+		catch (IOException e) {
+			if (tif != null)
+				return tif;
+			throw e;
+		}
+		if (host != null && ftif != tif)
+			storeDisk(k, ftif);
+		return ftif;
+	}
+
+	/** Fetch an image file.  If an expired copy is given, a conditional
+	 * request is made, and the copy is returned (with new validators)
+	 * if it was not modified.  The stream is closed after reading, so
+	 * that the connection can be reused.
+	 * @param k Tile key.
+	 * @param tif Expired copy of tile (null for none).
+	 * @param host Host of tile (null for local). */
+	private TempImageFile fetchImage(long k, TempImageFile tif,
+		String host) throws IOException
+	{
+		TileValidator v = (tif != null) ? tif.getValidator() : null;
+		long start = System.nanoTime();
+		try {
+			TileResponse r = source.fetchTile(k, v);
+			try {
+				TempImageFile ftif = createFile(r, tif);
+				if (ftif == null) {
+					throw new IOException("Not modified: " +
+						TileKey.toName(k));
+				}
+				fetch_time.recordSince(start);
+				if (r.isNotModified())
+					n_not_modified.incrementAndGet();
+				else {
+					n_fetched.incrementAndGet();
+					fetched_bytes.addAndGet(ftif.size());
+				}
+				ftif.setValidator(r.getValidator());
+				failures.succeeded(k, host);
+				return ftif;
+			}
+			finally {
+				r.close();
+			}
+		}
+		catch (FileNotFoundException e) {
+			failures.missing(k);
+			throw e;
+		}
+		catch (IOException e) {
+			failures.failed(k, host);
+			throw e;
+		}
+	}
+
+	/** Create an image file from a tile response.
+	 * @param r Tile response.
+	 * @param tif Cached copy (returned if not modified). */
+	static private TempImageFile createFile(TileResponse r,
+		TempImageFile tif) throws IOException
+	{
+		if (r.isNotModified())
+			return tif;
+		else if (r.getData() != null)
+			return new TempImageFile(r.getData());
+		else
+			return new TempImageFile(r.getStream(), r.getLength());
 	}
 
-	/** Lookup a tile and put it in the cache */
-	public void lookupTile(String n) throws IOException {
-		while(isFull())
-			purgeOldestImage();
-		TempImageFile tif = new TempImageFile(fetcher.fetchImage(n));
-		// Update the FIFO and hash map last so that exceptions cannot
-		// leave us in an inconsistent state
-		synchronized(tile_hash) {
-			tiles.addLast(n);
-			tile_hash.put(n, tif);
+	/** Lookup a tile in the disk tier */
+	private TempImageFile lookupDisk(long k) throws IOException {
+		TilePack p = getDiskCache();
+		if (p != null) {
+			byte[] data = p.lookup(k);
+			if (data != null) {
+				n_disk_hits.incrementAndGet();
+				TempImageFile tif = new TempImageFile(data);
+				tif.setValidator(p.getValidator(k));
+				return tif;
+			}
 		}
+		return null;
 	}
 
-	/** Check if the cache is full */
-	protected boolean isFull() {
-		synchronized(tile_hash) {
-			return tile_hash.size() >= size;
+	/** Store a tile in the disk tier.  An arena file is retained while
+	 * it is stored, so its block can't be freed (and reused) by eviction
+	 * meanwhile. */
+	private void storeDisk(long k, TempImageFile tif) {
+		TilePack p = getDiskCache();
+		if (p != null && tif.retain()) {
+			try {
+				p.store(k, tif.getData(), tif.getValidator());
+			}
+			catch (IOException e) {
+				System.err.print("I/O Error ");
+				System.err.print(e.getMessage());
+				System.err.println(" storing tile: " +
+					TileKey.toName(k));
+			}
+			finally {
+				tif.release();
+			}
 		}
 	}
 
 	/** Destroy the tile cache */
 	public void destroy() throws IOException {
-		synchronized(tile_hash) {
-			tiles.clear();
-			tile_hash.clear();
+		TilePack p;
+		synchronized (lock) {
+			p = pack;
+			pack = null;
 		}
+		tile_hash.clear();
+		decoded_hash.clear();
+		soft.clear();
+		if (p != null)
+			p.close();
 	}
 }
@@ -0,0 +1,163 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The tile cache registry shares tile caches within a process.  Caches are
+ * keyed by a string (such as the tile URL), so all tile layers for the same
+ * tiles use one cache.  All users of a cache must agree on its settings.
+ * Caches are created outside of the registry lock (opening a disk cache
+ * can take a while); other users of the same key wait for it.  Each cache
+ * is reference counted, and destroyed when the last reference is
+ * released.
+ *
+ * @author Douglas Lau
+ */
+public final class TileCacheRegistry {
+
+	/** Don't allow instantiation */
+	private TileCacheRegistry() { }
+
+	/** Factory to create a tile cache */
+	public interface Factory {
+		TileCache create() throws IOException;
+	}
+
+	/** Registry entry */
+	static private class Entry {
+		private final String settings;
+		private final FutureTask<TileCache> task;
+		private TileCache cache;	// null until created
+		private int refs;
+		private Entry(String s, final Factory f) {
+			settings = s;
+			task = new FutureTask<TileCache>(
+				new Callable<TileCache>()
+			{
+				public TileCache call() throws IOException {
+					return f.create();
+				}
+			});
+		}
+	}
+
+	/** Shared caches by key */
+	static private final HashMap<String, Entry> CACHES =
+		new HashMap<String, Entry>();
+
+	/** Acquire a reference to a shared tile cache.
+	 * @param key Cache key.
+	 * @param settings Settings of the cache (must match all other users
+	 *                 of the key).
+	 * @param f Factory to create the cache, if it does not exist.
+	 * @return Shared tile cache.
+	 * @throws IOException if the cache could not be created, or the
+	 *         settings conflict with the existing cache. */
+	static public TileCache acquire(String key, String settings, Factory f)
+		throws IOException
+	{
+		Entry e;
+		boolean owner = false;
+		synchronized (CACHES) {
+			e = CACHES.get(key);
+			if (e == null) {
+				e = new Entry(settings, f);
+				CACHES.put(key, e);
+				owner = true;
+			} else if (!e.settings.equals(settings)) {
+				throw new IOException("Conflicting settings " +
+					"for tile cache: " + key + " (" +
+					settings + " vs " + e.settings + ")");
+			}
+			e.refs++;
+		}
+		if (owner)
+			e.task.run();
+		try {
+			TileCache c = waitFor(e.task);
+			synchronized (CACHES) {
+				e.cache = c;
+			}
+			return c;
+		}
+		catch (IOException ex) {
+			synchronized (CACHES) {
+				e.refs--;
+				if (CACHES.get(key) == e)
+					CACHES.remove(key);
+			}
+			throw ex;
+		}
+	}
+
+	/** Wait for a cache to be created */
+	static private TileCache waitFor(FutureTask<TileCache> task)
+		throws IOException
+	{
+		try {
+			return task.get();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		}
+		catch (ExecutionException e) {
+			Throwable c = e.getCause();
+			if (c instanceof IOException)
+				throw (IOException) c;
+			else if (c instanceof RuntimeException)
+				throw (RuntimeException) c;
+			else if (c instanceof Error)
+				throw (Error) c;
+			else
+				throw new IOException(c);
+		}
+	}
+
+	/** Release a reference to a shared tile cache.  When the last
+	 * reference is released, the cache is destroyed. */
+	static public void release(TileCache c) throws IOException {
+		synchronized (CACHES) {
+			Iterator<Map.Entry<String, Entry>> it =
+				CACHES.entrySet().iterator();
+			while (it.hasNext()) {
+				Entry e = it.next().getValue();
+				if (e.cache == c) {
+					e.refs--;
+					if (e.refs > 0)
+						return;
+					it.remove();
+					break;
+				}
+			}
+		}
+		c.destroy();
+	}
+
+	/** Get the number of shared caches */
+	static public int size() {
+		synchronized (CACHES) {
+			return CACHES.size();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A benchmark comparing the per-tile decode time of the built-in PNG
+ * decoder with ImageIO.  Both paths include conversion to a
+ * screen-compatible image, as done by the tile cache.  Decoded images
+ * (type, transparency and pixels) are also compared, and any mismatched
+ * tiles are reported.
+ *
+ * Usage: TileDecodeBenchmark [-iterations n] [-indexed] file|dir ...
+ *
+ * Directories are searched for PNG files recursively.
+ *
+ * @author Douglas Lau
+ */
+public class TileDecodeBenchmark {
+
+	/** Default number of timed iterations */
+	static private final int ITERATIONS = 20;
+
+	/** Number of warm-up iterations (not timed) */
+	static private final int WARMUP = 5;
+
+	/** Add PNG tiles from a file or directory */
+	static private void findTiles(File f, List<TempImageFile> tiles)
+		throws IOException
+	{
+		if (f.isDirectory()) {
+			File[] files = f.listFiles();
+			if (files != null) {
+				Arrays.sort(files);
+				for (File c: files)
+					findTiles(c, tiles);
+			}
+		} else if (f.getName().endsWith(".png")) {
+			FileInputStream is = new FileInputStream(f);
+			try {
+				tiles.add(new TempImageFile(is, f.length()));
+			}
+			finally {
+				is.close();
+			}
+		}
+	}
+
+	/** Convert a decoded image, as done by the tile cache */
+	static private BufferedImage convert(BufferedImage img,
+		boolean indexed)
+	{
+		if (img == null)
+			return null;
+		else if (indexed &&
+		         img.getColorModel() instanceof IndexColorModel)
+			return img;
+		else
+			return CompatibleImage.convert(img);
+	}
+
+	/** Decode a tile */
+	static private BufferedImage decode(TempImageFile tif,
+		boolean builtin, boolean indexed) throws IOException
+	{
+		BufferedImage img = builtin
+		                  ? tif.decodePng(indexed)
+		                  : tif.getImage();
+		if (img == null && builtin)
+			img = tif.getImage();
+		return convert(img, indexed);
+	}
+
+	/** Time decoding all tiles.
+	 * @return Mean decode time per tile (microseconds). */
+	static private double time(List<TempImageFile> tiles, int n,
+		boolean builtin, boolean indexed) throws IOException
+	{
+		for (int i = 0; i < WARMUP; i++) {
+			for (TempImageFile tif: tiles)
+				decode(tif, builtin, indexed);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			for (TempImageFile tif: tiles)
+				decode(tif, builtin, indexed);
+		}
+		long ns = System.nanoTime() - start;
+		return ns / 1000.0 / ((long) n * tiles.size());
+	}
+
+	/** Check if two images have the same type, transparency and
+	 * pixels */
+	static private boolean sameImage(BufferedImage a, BufferedImage b) {
+		int w = a.getWidth();
+		int h = a.getHeight();
+		if (w != b.getWidth() || h != b.getHeight())
+			return false;
+		if (a.getType() != b.getType() ||
+		    a.getTransparency() != b.getTransparency())
+			return false;
+		int[] ra = new int[w];
+		int[] rb = new int[w];
+		for (int y = 0; y < h; y++) {
+			a.getRGB(0, y, w, 1, ra, 0, w);
+			b.getRGB(0, y, w, 1, rb, 0, w);
+			if (!Arrays.equals(ra, rb))
+				return false;
+		}
+		return true;
+	}
+
+	/** Print usage and exit */
+	static private void usage() {
+		System.err.println("usage: TileDecodeBenchmark " +
+			"[-iterations n] [-indexed] file|dir ...");
+		System.exit(1);
+	}
+
+	/** Run the benchmark */
+	static public void main(String[] args) throws Exception {
+		int n = ITERATIONS;
+		boolean indexed = false;
+		int a = 0;
+		while (a < args.length && args[a].startsWith("-")) {
+			if ("-iterations".equals(args[a]) &&
+			    a + 1 < args.length)
+			{
+				n = Integer.parseInt(args[a + 1]);
+				a += 2;
+			} else if ("-indexed".equals(args[a])) {
+				indexed = true;
+				a++;
+			} else
+				usage();
+		}
+		if (a >= args.length || n < 1)
+			usage();
+		List<TempImageFile> tiles = new ArrayList<TempImageFile>();
+		for (; a < args.length; a++)
+			findTiles(new File(args[a]), tiles);
+		if (tiles.isEmpty()) {
+			System.err.println("TileDecodeBenchmark: no PNG tiles");
+			System.exit(1);
+		}
+		int n_fallback = 0;
+		int n_mismatch = 0;
+		for (TempImageFile tif: tiles) {
+			if (tif.decodePng(indexed) == null)
+				n_fallback++;
+			BufferedImage ii = decode(tif, false, indexed);
+			BufferedImage bi = decode(tif, true, indexed);
+			if (ii == null || bi == null || !sameImage(ii, bi))
+				n_mismatch++;
+		}
+		double t_imageio = time(tiles, n, false, indexed);
+		double t_builtin = time(tiles, n, true, indexed);
+		System.out.println(tiles.size() + " tiles, " + n +
+			" iterations" + (indexed ? " (indexed color)" : ""));
+		System.out.printf("ImageIO:  %9.1f us/tile%n", t_imageio);
+		System.out.printf("built-in: %9.1f us/tile (%.2fx)%n",
+			t_builtin, t_imageio / t_builtin);
+		System.out.println(n_fallback + " tiles fell back to " +
+			"ImageIO, " + n_mismatch + " mismatched tiles");
+	}
+}
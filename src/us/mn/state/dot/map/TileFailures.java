@@ -0,0 +1,226 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tile failures is a bounded negative cache for tile lookups.  Missing
+ * tiles are not requested again until a time-to-live expires.  Transient
+ * failures block a tile (and its host) with exponential backoff, so an
+ * outage does not flood the server with retries.
+ *
+ * @author Douglas Lau
+ */
+public class TileFailures {
+
+	/** Default maximum number of tiles to track */
+	static public final int MAX_TILES = 4096;
+
+	/** Default time-to-live for missing tiles (ms) */
+	static public final long MISSING_TTL_MS = 10 * 60 * 1000;
+
+	/** Default initial backoff for transient failures (ms) */
+	static public final long BACKOFF_MS = 1000;
+
+	/** Default maximum backoff for transient failures (ms) */
+	static public final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+	/** Failure state for one tile or host */
+	static private class Failure {
+		private int count;		// consecutive failures
+		private long retry;		// time to allow retry (ms)
+		private String host;		// host which serves tile
+	}
+
+	/** Maximum number of tiles to track */
+	private final int max_tiles;
+
+	/** Time-to-live for missing tiles (ms) */
+	private final long missing_ttl;
+
+	/** Initial backoff (ms) */
+	private final long backoff;
+
+	/** Maximum backoff (ms) */
+	private final long max_backoff;
+
+	/** Failures by tile key (oldest first) */
+	private final LongHashMap<Failure> tiles = new LongHashMap<Failure>();
+
+	/** Failures by host name */
+	private final HashMap<String, Failure> hosts =
+		new HashMap<String, Failure>();
+
+	/** Total failures by host name */
+	private final HashMap<String, Long> host_totals =
+		new HashMap<String, Long>();
+
+	/** Total count of missing tiles */
+	private long n_missing;
+
+	/** Total count of transient failures */
+	private long n_failed;
+
+	/** Create a new tile failures cache.
+	 * @param mt Maximum number of tiles to track.
+	 * @param ttl Time-to-live for missing tiles (ms).
+	 * @param b Initial backoff for transient failures (ms).
+	 * @param mb Maximum backoff for transient failures (ms). */
+	public TileFailures(int mt, long ttl, long b, long mb) {
+		max_tiles = mt;
+		missing_ttl = ttl;
+		backoff = b;
+		max_backoff = mb;
+	}
+
+	/** Create a new tile failures cache with default values */
+	public TileFailures() {
+		this(MAX_TILES, MISSING_TTL_MS, BACKOFF_MS, MAX_BACKOFF_MS);
+	}
+
+	/** Check if a tile lookup is blocked.  The host of a failed tile
+	 * is recorded with it, so no tile source lookup is needed here.
+	 * @param tile Tile key.
+	 * @return true if the tile should not be requested now. */
+	public boolean isBlocked(long tile) {
+		return System.currentTimeMillis() < getRetryTime(tile);
+	}
+
+	/** Get the time when a tile lookup will no longer be blocked (by
+	 * the tile or its host).
+	 * @param tile Tile key.
+	 * @return Time to allow retry (ms), or 0 for no failure. */
+	public synchronized long getRetryTime(long tile) {
+		Failure f = tiles.peek(tile);
+		if (f == null)
+			return 0;
+		Failure hf = (f.host != null) ? hosts.get(f.host) : null;
+		return (hf != null) ? Math.max(f.retry, hf.retry) : f.retry;
+	}
+
+	/** Check if any hosts are backing off */
+	public synchronized boolean hasBlockedHosts() {
+		long now = System.currentTimeMillis();
+		for (Failure hf: hosts.values()) {
+			if (now < hf.retry)
+				return true;
+		}
+		return false;
+	}
+
+	/** Check if a host is backing off.
+	 * @param host Host name (may be null).
+	 * @return true if no tiles should be requested from host now. */
+	public synchronized boolean isHostBlocked(String host) {
+		return isHostBlocked(host, System.currentTimeMillis());
+	}
+
+	/** Check if a host is backing off at a given time */
+	private boolean isHostBlocked(String host, long now) {
+		Failure hf = (host != null) ? hosts.get(host) : null;
+		return hf != null && now < hf.retry;
+	}
+
+	/** Put a tile failure, dropping the oldest over the limit */
+	private void putTile(long tile, Failure f) {
+		tiles.put(tile, f);
+		while (tiles.size() > max_tiles)
+			tiles.remove(tiles.eldestKey());
+	}
+
+	/** Record a missing tile */
+	public synchronized void missing(long tile) {
+		n_missing++;
+		Failure f = new Failure();
+		f.retry = System.currentTimeMillis() + missing_ttl;
+		tiles.remove(tile);
+		putTile(tile, f);
+	}
+
+	/** Record a transient failure */
+	public synchronized void failed(long tile, String host) {
+		n_failed++;
+		long now = System.currentTimeMillis();
+		Failure f = tiles.remove(tile);
+		if (f == null)
+			f = new Failure();
+		backoff(f, now);
+		f.host = host;
+		putTile(tile, f);
+		if (host != null) {
+			Failure hf = hosts.get(host);
+			if (hf == null) {
+				hf = new Failure();
+				hosts.put(host, hf);
+			}
+			backoff(hf, now);
+			Long t = host_totals.get(host);
+			host_totals.put(host, (t != null) ? t + 1 : 1L);
+		}
+	}
+
+	/** Record a tile skipped because its host is backing off.  The
+	 * tile stays blocked only as long as the host. */
+	public synchronized void hostBlocked(long tile, String host) {
+		Failure f = tiles.remove(tile);
+		if (f == null)
+			f = new Failure();
+		f.host = host;
+		putTile(tile, f);
+	}
+
+	/** Increase backoff for a failure */
+	private void backoff(Failure f, long now) {
+		f.count++;
+		int sh = Math.min(f.count - 1, 30);
+		f.retry = now + Math.min(backoff << sh, max_backoff);
+	}
+
+	/** Record a successful lookup */
+	public synchronized void succeeded(long tile, String host) {
+		tiles.remove(tile);
+		if (host != null)
+			hosts.remove(host);
+	}
+
+	/** Get the number of tiles tracked */
+	public synchronized int size() {
+		return tiles.size();
+	}
+
+	/** Get the total count of missing tiles */
+	public synchronized long getMissingCount() {
+		return n_missing;
+	}
+
+	/** Get the total count of transient failures */
+	public synchronized long getFailedCount() {
+		return n_failed;
+	}
+
+	/** Get the total failures by host name */
+	public synchronized Map<String, Long> getHostFailures() {
+		return new TreeMap<String, Long>(host_totals);
+	}
+
+	/** Clear all failures */
+	public synchronized void clear() {
+		tiles.clear();
+		hosts.clear();
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+/**
+ * Tile keys pack the identity of a tile (zoom, X and Y) into a long.  The
+ * zoom level uses the high 8 bits, with 28 bits each for X and Y.  Y is
+ * counted from the top (north), as in tile names.
+ *
+ * @author Douglas Lau
+ */
+public final class TileKey {
+
+	/** Don't allow instantiation */
+	private TileKey() { }
+
+	/** Number of bits for X or Y */
+	static private final int XY_BITS = 28;
+
+	/** Mask for X or Y */
+	static private final long XY_MASK = (1L << XY_BITS) - 1;
+
+	/** Pack a tile key.
+	 * @param z Zoom level ordinal.
+	 * @param x Tile X.
+	 * @param y Tile Y (from top). */
+	static public long pack(int z, int x, int y) {
+		return ((long) z << (2 * XY_BITS)) |
+		       ((x & XY_MASK) << XY_BITS) |
+		       (y & XY_MASK);
+	}
+
+	/** Get the zoom level ordinal of a key */
+	static public int zoom(long k) {
+		return (int) (k >>> (2 * XY_BITS));
+	}
+
+	/** Get the tile X of a key */
+	static public int x(long k) {
+		return (int) ((k >>> XY_BITS) & XY_MASK);
+	}
+
+	/** Get the tile Y (from top) of a key */
+	static public int y(long k) {
+		return (int) (k & XY_MASK);
+	}
+
+	/** Get the tile name of a key ("zoom/x/y") */
+	static public String toName(long k) {
+		StringBuilder sb = new StringBuilder(16);
+		sb.append(zoom(k)).append('/').append(x(k)).append('/')
+		  .append(y(k));
+		return sb.toString();
+	}
+
+	/** Parse a tile name ("zoom/x/y").
+	 * @return Tile key.
+	 * @throws NumberFormatException if the name is invalid. */
+	static public long parse(String n) {
+		String[] p = n.split("/");
+		if (p.length != 3)
+			throw new NumberFormatException(n);
+		return pack(Integer.parseInt(p[0]), Integer.parseInt(p[1]),
+			Integer.parseInt(p[2]));
+	}
+}
@@ -14,41 +14,271 @@
  */
 package us.mn.state.dot.map;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
- * A tile layer for drawing a Google-style tile map.
+ * A tile layer for drawing a Google-style tile map.  Tile layers with the
+ * same URL and hosts (and no local sources) share one tile cache.  They
+ * must have the same cache settings (budgets, disk cache, maximum age,
+ * indexed color, off-heap arena and transport), or initialize fails.
+ * Each layer state uses its own view of the cache.  Metrics for each layer
+ * are published as a platform MBean while the layer is initialized.
  *
  * @author Douglas Lau
  */
 public class TileLayer extends Layer {
 
-	/** URL where tiles are hosted */
+	/** URL where tiles are hosted (null for local sources only) */
 	private final String url;
 
-	/** Number of tiles to cache */
-	private final int n_cached;
+	/** Local tile sources, checked before the URL */
+	private final ArrayList<TileSource> sources =
+		new ArrayList<TileSource>();
+
+	/** Byte budget for compressed tiles (per view) */
+	private final long c_budget;
+
+	/** Byte budget for decoded tiles (per view) */
+	private final long d_budget;
+
+	/** Disk cache file (null for none) */
+	private File disk_file;
+
+	/** Maximum size of disk cache (bytes) */
+	private long disk_size;
+
+	/** Number of tile fetch threads */
+	private int n_threads = TileScheduler.DEFAULT_THREADS;
+
+	/** Number of tile decode threads */
+	private int n_decoders = TileScheduler.DEFAULT_DECODE_THREADS;
+
+	/** Host names for URL template (null for none) */
+	private String[] hosts;
+
+	/** Tile transport */
+	private TileTransport transport = new UrlTransport();
+
+	/** Maximum age before revalidating a tile (ms) */
+	private long max_age = TileCache.MAX_AGE_MS;
+
+	/** Flag to keep palette tiles as indexed-color images */
+	private boolean indexed_color;
+
+	/** Capacity of off-heap arena for compressed tiles (0 for none) */
+	private long arena_size;
+
+	/** Number of tiles in prefetch ring (-1 to disable prefetch) */
+	private int prefetch_ring = 1;
 
 	/** Tile cache */
 	private TileCache cache;
 
-	/** Create a new tile layer */
-	public TileLayer(String n, String url, int n_cached) {
+	/** Tile fetch scheduler */
+	private TileScheduler scheduler;
+
+	/** Tile decode scheduler */
+	private TileScheduler decoder;
+
+	/** Layer metrics monitor */
+	private TileLayerMonitor monitor;
+
+	/** Get the layer metrics monitor */
+	public TileLayerMonitor getMonitor() {
+		return monitor;
+	}
+
+	/** Create a new tile layer.
+	 * @param n Layer name.
+	 * @param url Base URL of tiles (null for local sources only).
+	 * @param cb Byte budget for compressed tiles (or TileCache.AUTO_SIZE).
+	 * @param db Byte budget for decoded tiles (or TileCache.AUTO_SIZE). */
+	public TileLayer(String n, String url, long cb, long db) {
 		super(n);
 		this.url = url;
-		this.n_cached = n_cached;
+		c_budget = cb;
+		d_budget = db;
+	}
+
+	/** Create a new tile layer.
+	 * @param n Layer name.
+	 * @param url Base URL of tiles.
+	 * @param n_cached Number of compressed tiles to cache. */
+	public TileLayer(String n, String url, int n_cached) {
+		this(n, url, (long) n_cached * TileCache.COMPRESSED_TILE_BYTES,
+			TileCache.AUTO_SIZE);
+	}
+
+	/** Set the disk cache.  Must be called before initialize.
+	 * @param f Tile pack file (null for none).
+	 * @param sz Maximum size of tile pack (bytes). */
+	public void setDiskCache(File f, long sz) {
+		disk_file = f;
+		disk_size = sz;
+	}
+
+	/** Add a local tile source, such as a DirectoryTileSource or a
+	 * PackTileSource.  Local sources are checked in the order added,
+	 * before the URL.  Must be called before initialize. */
+	public void addSource(TileSource s) {
+		sources.add(s);
+	}
+
+	/** Set the number of tile fetch threads.  Must be called before
+	 * initialize. */
+	public void setFetchThreads(int n) {
+		n_threads = n;
+	}
+
+	/** Set the number of threads for decoding cached tiles.  Must be
+	 * called before initialize. */
+	public void setDecodeThreads(int n) {
+		n_decoders = n;
+	}
+
+	/** Set host names to substitute for the URL host token.  Must be
+	 * called before initialize.
+	 * @see ImageFetcher#HOST_TOKEN */
+	public void setHosts(String... h) {
+		hosts = h;
+	}
+
+	/** Set the tile transport.  Must be called before initialize. */
+	public void setTransport(TileTransport t) {
+		transport = t;
+	}
+
+	/** Set the maximum age before revalidating a cached tile.  Must be
+	 * called before initialize.
+	 * @param ms Maximum age (ms), or Long.MAX_VALUE to never
+	 *           revalidate. */
+	public void setMaxAge(long ms) {
+		max_age = ms;
+	}
+
+	/** Set whether palette tiles are kept as indexed-color images, so
+	 * that about four times as many decoded tiles fit in the decoded
+	 * tier budget.  Must be called before initialize. */
+	public void setIndexedColor(boolean ic) {
+		indexed_color = ic;
+	}
+
+	/** Set the capacity of an off-heap arena for compressed tiles.  This
+	 * should be somewhat larger than the compressed byte budget, since
+	 * tiles which don't fit are kept on the heap.  Must be called before
+	 * initialize.
+	 * @param sz Arena capacity (bytes), or 0 to keep tiles on the
+	 *           heap. */
+	public void setOffHeap(long sz) {
+		arena_size = sz;
+	}
+
+	/** Set the prefetch ring.  Must be called before creating states.
+	 * @param r Number of tiles around the viewport to prefetch, or -1
+	 *          to disable prefetching. */
+	public void setPrefetchRing(int r) {
+		prefetch_ring = r;
+	}
+
+	/** Get the prefetch ring */
+	public int getPrefetchRing() {
+		return prefetch_ring;
 	}
 
 	/** Initialize the tile layer */
 	public void initialize() throws IOException {
-		ImageFetcher f = new ImageFetcher(url);
-		cache = new TileCache(f, n_cached);
+		cache = TileCacheRegistry.acquire(getCacheKey(),
+			getCacheSettings(), new TileCacheRegistry.Factory()
+		{
+			public TileCache create() throws IOException {
+				return createCache();
+			}
+		});
+		scheduler = new TileScheduler(n_threads);
+		decoder = new TileScheduler("TileDecode", n_decoders);
+		monitor = new TileLayerMonitor(getName(), cache, scheduler,
+			decoder);
+		monitor.register();
+	}
+
+	/** Dispose of the tile layer.  All layer states must be disposed
+	 * first. */
+	public void dispose() throws IOException {
+		if (monitor != null) {
+			monitor.unregister();
+			monitor = null;
+		}
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+		if (decoder != null) {
+			decoder.shutdown();
+			decoder = null;
+		}
+		if (cache != null) {
+			TileCacheRegistry.release(cache);
+			cache = null;
+		}
+	}
+
+	/** Get the key for sharing the tile cache.  Local sources can't be
+	 * compared, so layers using them don't share. */
+	private String getCacheKey() {
+		if (url != null && sources.isEmpty()) {
+			return (hosts != null)
+			      ? url + ' ' + Arrays.toString(hosts)
+			      : url;
+		} else
+			return getName() + '@' + System.identityHashCode(this);
+	}
+
+	/** Get the settings of the tile cache, which must match for all
+	 * layers sharing it */
+	private String getCacheSettings() {
+		return "budget=" + c_budget + '/' + d_budget +
+		       " disk=" + disk_file + '/' + disk_size +
+		       " max_age=" + max_age +
+		       " indexed=" + indexed_color +
+		       " arena=" + arena_size +
+		       " transport=" + transport.getClass().getName();
+	}
+
+	/** Create the tile cache */
+	private TileCache createCache() throws IOException {
+		TileCache c = new TileCache(createSource(), c_budget, d_budget);
+		c.setMaxAge(max_age);
+		c.setIndexedColor(indexed_color);
+		if (arena_size > 0)
+			c.setArena(new TileArena(arena_size));
+		if (disk_file != null)
+			c.setDiskCache(new TilePack(disk_file, disk_size));
+		return c;
+	}
+
+	/** Create the tile source */
+	private TileSource createSource() throws IOException {
+		ArrayList<TileSource> src = new ArrayList<TileSource>(sources);
+		if (url != null)
+			src.add(new ImageFetcher(url, hosts, transport));
+		if (src.isEmpty())
+			throw new IOException("No tile source: " + getName());
+		else if (src.size() == 1)
+			return src.get(0);
+		else
+			return new ChainedTileSource(src.toArray(
+				new TileSource[0]));
 	}
 
 	/** Create a new layer state */
 	public LayerState createState(MapBean mb) {
 		assert (cache != null);
-		return new TileLayerState(this, mb, cache);
+		TileCache.View v = cache.addView();
+		monitor.addView(v);
+		return new TileLayerState(this, mb, v, scheduler, decoder);
 	}
 
 	/** Check if the layer is searchable */
@@ -0,0 +1,156 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.util.Map;
+
+/**
+ * Management interface for tile layer metrics.  View statistics (hits,
+ * misses, fetches) are totals for all states of the layer.  Cache and
+ * fetcher statistics are for the tile cache, which may be shared with
+ * other tile layers.  All latencies are in microseconds.
+ *
+ * @author Douglas Lau
+ */
+public interface TileLayerMXBean {
+
+	/** Get the layer name */
+	String getName();
+
+	/** Get the number of layer states (views) */
+	int getViews();
+
+	/** Get the count of tiles found in the cache while painting */
+	long getHits();
+
+	/** Get the count of tiles not found in the cache while painting */
+	long getMisses();
+
+	/** Get the ratio of hits to all tile reads */
+	double getHitRatio();
+
+	/** Get the count of lookups which fetched a tile */
+	long getLookupsFetched();
+
+	/** Get the count of lookups which joined a pending lookup */
+	long getLookupsShared();
+
+	/** Get the number of lookups in progress */
+	int getLookupsPending();
+
+	/** Get the number of queued fetch requests */
+	int getRequestsQueued();
+
+	/** Get the number of queued decode requests */
+	int getDecodesQueued();
+
+	/** Get the number of tiles in the compressed tier */
+	int getCompressedTiles();
+
+	/** Get the bytes used by the compressed tier */
+	long getCompressedBytes();
+
+	/** Get the compressed tier limit (bytes) */
+	long getCompressedLimit();
+
+	/** Get the count of tiles evicted from the compressed tier */
+	long getCompressedEvictions();
+
+	/** Get the number of tiles in the decoded tier */
+	int getDecodedTiles();
+
+	/** Get the bytes used by the decoded tier */
+	long getDecodedBytes();
+
+	/** Get the decoded tier limit (bytes) */
+	long getDecodedLimit();
+
+	/** Get the count of tiles evicted from the decoded tier */
+	long getDecodedEvictions();
+
+	/** Get the bytes reserved by the off-heap arena */
+	long getArenaReserved();
+
+	/** Get the bytes allocated to tiles in the off-heap arena */
+	long getArenaAllocated();
+
+	/** Get the number of tiles in the off-heap arena */
+	int getArenaTiles();
+
+	/** Get the count of tiles which didn't fit in the off-heap arena */
+	long getArenaFailed();
+
+	/** Get the fragmentation of free space in the off-heap arena (0 to
+	 * 1) */
+	double getArenaFragmentation();
+
+	/** Get the number of tiles in the soft tier */
+	int getSoftTiles();
+
+	/** Get the count of tiles recovered from the soft tier */
+	long getSoftHits();
+
+	/** Get the count of tiles not found in the soft tier */
+	long getSoftMisses();
+
+	/** Get the count of soft tier tiles reclaimed by the garbage
+	 * collector */
+	long getSoftReclaimed();
+
+	/** Get the count of tiles fetched from the source */
+	long getTilesFetched();
+
+	/** Get the count of "not modified" responses */
+	long getTilesNotModified();
+
+	/** Get the total bytes of tiles fetched */
+	long getBytesFetched();
+
+	/** Get the count of tiles found in the disk tier */
+	long getDiskHits();
+
+	/** Get the count of missing tiles */
+	long getTilesMissing();
+
+	/** Get the count of transient tile failures */
+	long getTilesFailed();
+
+	/** Get the total failures by host name */
+	Map<String, Long> getHostFailures();
+
+	/** Get the count of requests by host name */
+	Map<String, Long> getHostRequests();
+
+	/** Get the count of tiles drawn while painting */
+	long getTilesDrawn();
+
+	/** Get the count of tiles drawn with fallback images */
+	long getFallbacksDrawn();
+
+	/** Get the fetch latency (including reading the response) */
+	LatencyHistogram.Snapshot getFetchLatency();
+
+	/** Get the server response latency */
+	LatencyHistogram.Snapshot getResponseLatency();
+
+	/** Get the decode latency */
+	LatencyHistogram.Snapshot getDecodeLatency();
+
+	/** Get the paint latency */
+	LatencyHistogram.Snapshot getPaintLatency();
+
+	/** Reset the latency histograms */
+	void resetLatencies();
+}
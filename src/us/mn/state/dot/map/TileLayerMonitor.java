@@ -0,0 +1,401 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A tile layer monitor collects metrics for one tile layer, and publishes
+ * them as a platform MBean named
+ * "us.mn.state.dot.map:type=TileLayer,name=<layer name>".  Layers with the
+ * same name get an extra "id" key.
+ *
+ * @author Douglas Lau
+ */
+public class TileLayerMonitor implements TileLayerMXBean {
+
+	/** MBean domain */
+	static public final String DOMAIN = "us.mn.state.dot.map";
+
+	/** Empty latency snapshot */
+	static private final LatencyHistogram.Snapshot EMPTY =
+		new LatencyHistogram().getSnapshot();
+
+	/** Find an image fetcher in a tile source */
+	static private ImageFetcher findFetcher(TileSource s) {
+		if (s instanceof ImageFetcher)
+			return (ImageFetcher) s;
+		if (s instanceof ChainedTileSource) {
+			ChainedTileSource c = (ChainedTileSource) s;
+			for (TileSource cs: c.getSources()) {
+				ImageFetcher f = findFetcher(cs);
+				if (f != null)
+					return f;
+			}
+		}
+		return null;
+	}
+
+	/** Layer name */
+	private final String name;
+
+	/** Tile cache */
+	private final TileCache cache;
+
+	/** Tile fetch scheduler */
+	private final TileScheduler scheduler;
+
+	/** Tile decode scheduler */
+	private final TileScheduler decoder;
+
+	/** Image fetcher of cache source (null for local sources only) */
+	private final ImageFetcher fetcher;
+
+	/** Cache views of layer states */
+	private final CopyOnWriteArrayList<TileCache.View> views =
+		new CopyOnWriteArrayList<TileCache.View>();
+
+	/** Time to paint the layer */
+	private final LatencyHistogram paint_time = new LatencyHistogram();
+
+	/** Count of tiles drawn while painting */
+	private final AtomicLong n_drawn = new AtomicLong();
+
+	/** Count of tiles drawn with fallback images */
+	private final AtomicLong n_fallbacks = new AtomicLong();
+
+	/** Registered MBean name (null if not registered) */
+	private ObjectName oname;
+
+	/** Create a new tile layer monitor */
+	public TileLayerMonitor(String n, TileCache c, TileScheduler s,
+		TileScheduler d)
+	{
+		name = n;
+		cache = c;
+		scheduler = s;
+		decoder = d;
+		fetcher = findFetcher(c.getSource());
+	}
+
+	/** Register the MBean with the platform MBean server.  Errors are
+	 * printed, since monitoring is not needed to draw the layer. */
+	public synchronized void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			String on = DOMAIN + ":type=TileLayer,name=" +
+				ObjectName.quote(name);
+			try {
+				oname = server.registerMBean(this,
+					new ObjectName(on)).getObjectName();
+			}
+			catch (InstanceAlreadyExistsException e) {
+				oname = server.registerMBean(this,
+					new ObjectName(on + ",id=" +
+					System.identityHashCode(this)))
+					.getObjectName();
+			}
+		}
+		catch (JMException e) {
+			System.err.println("JMX error registering " + name +
+				": " + e.getMessage());
+		}
+	}
+
+	/** Unregister the MBean */
+	public synchronized void unregister() {
+		if (oname != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer()
+					.unregisterMBean(oname);
+			}
+			catch (JMException e) {
+				System.err.println("JMX error unregistering " +
+					name + ": " + e.getMessage());
+			}
+			oname = null;
+		}
+	}
+
+	/** Add a cache view of a layer state */
+	public void addView(TileCache.View v) {
+		views.add(v);
+	}
+
+	/** Remove a cache view of a layer state */
+	public void removeView(TileCache.View v) {
+		views.remove(v);
+	}
+
+	/** Get the time to paint the layer */
+	public LatencyHistogram getPaintTime() {
+		return paint_time;
+	}
+
+	/** Count a tile drawn while painting */
+	public void tileDrawn() {
+		n_drawn.incrementAndGet();
+	}
+
+	/** Count a tile drawn with fallback images */
+	public void fallbackDrawn() {
+		n_fallbacks.incrementAndGet();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getViews() {
+		return views.size();
+	}
+
+	@Override
+	public long getHits() {
+		long n = 0;
+		for (TileCache.View v: views)
+			n += v.getHits();
+		return n;
+	}
+
+	@Override
+	public long getMisses() {
+		long n = 0;
+		for (TileCache.View v: views)
+			n += v.getMisses();
+		return n;
+	}
+
+	@Override
+	public double getHitRatio() {
+		long h = getHits();
+		long t = h + getMisses();
+		return (t > 0) ? (double) h / t : 0;
+	}
+
+	@Override
+	public long getLookupsFetched() {
+		long n = 0;
+		for (TileCache.View v: views)
+			n += v.getFetches();
+		return n;
+	}
+
+	@Override
+	public long getLookupsShared() {
+		long n = 0;
+		for (TileCache.View v: views)
+			n += v.getShared();
+		return n;
+	}
+
+	@Override
+	public int getLookupsPending() {
+		return cache.getPendingCount();
+	}
+
+	@Override
+	public int getRequestsQueued() {
+		return scheduler.getQueued();
+	}
+
+	@Override
+	public int getDecodesQueued() {
+		return decoder.getQueued();
+	}
+
+	@Override
+	public int getCompressedTiles() {
+		return cache.getCompressedCount();
+	}
+
+	@Override
+	public long getCompressedBytes() {
+		return cache.getCompressedBytes();
+	}
+
+	@Override
+	public long getCompressedLimit() {
+		return cache.getCompressedLimit();
+	}
+
+	@Override
+	public long getCompressedEvictions() {
+		return cache.getCompressedEvictions();
+	}
+
+	@Override
+	public int getDecodedTiles() {
+		return cache.getDecodedCount();
+	}
+
+	@Override
+	public long getDecodedBytes() {
+		return cache.getDecodedBytes();
+	}
+
+	@Override
+	public long getDecodedLimit() {
+		return cache.getDecodedLimit();
+	}
+
+	@Override
+	public long getDecodedEvictions() {
+		return cache.getDecodedEvictions();
+	}
+
+	@Override
+	public long getArenaReserved() {
+		TileArena a = cache.getArena();
+		return (a != null) ? a.getReserved() : 0;
+	}
+
+	@Override
+	public long getArenaAllocated() {
+		TileArena a = cache.getArena();
+		return (a != null) ? a.getAllocated() : 0;
+	}
+
+	@Override
+	public int getArenaTiles() {
+		TileArena a = cache.getArena();
+		return (a != null) ? a.getBlockCount() : 0;
+	}
+
+	@Override
+	public long getArenaFailed() {
+		TileArena a = cache.getArena();
+		return (a != null) ? a.getFailedCount() : 0;
+	}
+
+	@Override
+	public double getArenaFragmentation() {
+		TileArena a = cache.getArena();
+		return (a != null) ? a.getFragmentation() : 0;
+	}
+
+	@Override
+	public int getSoftTiles() {
+		return cache.getSoftCount();
+	}
+
+	@Override
+	public long getSoftHits() {
+		return cache.getSoftHits();
+	}
+
+	@Override
+	public long getSoftMisses() {
+		return cache.getSoftMisses();
+	}
+
+	@Override
+	public long getSoftReclaimed() {
+		return cache.getSoftReclaimed();
+	}
+
+	@Override
+	public long getTilesFetched() {
+		return cache.getFetchedCount();
+	}
+
+	@Override
+	public long getTilesNotModified() {
+		return cache.getNotModifiedCount();
+	}
+
+	@Override
+	public long getBytesFetched() {
+		return cache.getFetchedBytes();
+	}
+
+	@Override
+	public long getDiskHits() {
+		return cache.getDiskHits();
+	}
+
+	@Override
+	public long getTilesMissing() {
+		return cache.getFailures().getMissingCount();
+	}
+
+	@Override
+	public long getTilesFailed() {
+		return cache.getFailures().getFailedCount();
+	}
+
+	@Override
+	public Map<String, Long> getHostFailures() {
+		return cache.getFailures().getHostFailures();
+	}
+
+	@Override
+	public Map<String, Long> getHostRequests() {
+		return (fetcher != null)
+		      ? fetcher.getHostRequests()
+		      : Collections.<String, Long>emptyMap();
+	}
+
+	@Override
+	public long getTilesDrawn() {
+		return n_drawn.get();
+	}
+
+	@Override
+	public long getFallbacksDrawn() {
+		return n_fallbacks.get();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getFetchLatency() {
+		return cache.getFetchTime().getSnapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getResponseLatency() {
+		return (fetcher != null)
+		      ? fetcher.getResponseTime().getSnapshot()
+		      : EMPTY;
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getDecodeLatency() {
+		return cache.getDecodeTime().getSnapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getPaintLatency() {
+		return paint_time.getSnapshot();
+	}
+
+	@Override
+	public void resetLatencies() {
+		cache.getFetchTime().clear();
+		cache.getDecodeTime().clear();
+		if (fetcher != null)
+			fetcher.getResponseTime().clear();
+		paint_time.clear();
+	}
+}
@@ -15,12 +15,19 @@
 package us.mn.state.dot.map;
 
 import java.awt.Dimension;
+import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashSet;
-import javax.swing.SwingWorker;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.Timer;
 import us.mn.state.dot.geokit.ZoomLevel;
 
 /**
@@ -30,123 +37,615 @@ import us.mn.state.dot.geokit.ZoomLevel;
  */
 public class TileLayerState extends LayerState {
 
+	/** Priority penalty for each zoom level from the current zoom */
+	static private final double ZOOM_PRIORITY = 64;
+
+	/** Number of ancestor zoom levels to check for fallback tiles */
+	static private final int FALLBACK_LEVELS = 4;
+
+	/** Interval for coalescing tile arrivals (ms) */
+	static private final int FRAME_MS = 40;
+
+	/** Priority penalty for prefetch requests */
+	static private final double PREFETCH_PRIORITY = 1 << 20;
+
 	/** Cache of tiles */
 	private final TileCache cache;
 
-	/** Set of missing tiles */
-	private final HashSet<String> no_tile = new HashSet<String>();
+	/** View of tile cache */
+	private final TileCache.View view;
+
+	/** Set of tile keys with a pending lookup */
+	private final LongHashMap<Boolean> pending =
+		new LongHashMap<Boolean>();
+
+	/** Set of tile keys with a pending decode */
+	private final LongHashMap<Boolean> decoding =
+		new LongHashMap<Boolean>();
+
+	/** Tile fetch scheduler */
+	private final TileScheduler scheduler;
+
+	/** Tile decode scheduler */
+	private final TileScheduler decoder;
+
+	/** Layer metrics monitor */
+	private final TileLayerMonitor monitor;
+
+	/** Current viewport (tile range) */
+	private volatile Viewport viewport;
+
+	/** Viewports for prefetching (ring and adjacent zoom levels) */
+	private volatile Viewport[] prefetch_views = new Viewport[0];
+
+	/** Number of tiles in prefetch ring around viewport */
+	private final int ring;
+
+	/** Number of pending requests for visible tiles */
+	private final AtomicInteger n_visible = new AtomicInteger();
+
+	/** Flag indicating prefetch was done for current viewport */
+	private boolean prefetched;
+
+	/** Center of current viewport (user coordinates) */
+	private Point2D view_center;
+
+	/** Half width of current viewport (pixels) */
+	private int view_hx;
+
+	/** Half height of current viewport (pixels) */
+	private int view_hy;
+
+	/** Flag indicating tiles have arrived since last frame */
+	private final AtomicBoolean arrived = new AtomicBoolean();
+
+	/** Timer to signal tile arrivals once per frame */
+	private final Timer frame_timer = new Timer(FRAME_MS,
+		new ActionListener()
+	{
+		public void actionPerformed(ActionEvent e) {
+			arrived.set(false);
+			fireLayerChanged(LayerChange.geometry);
+		}
+	});
+
+	/** Timer to start prefetching when all visible tiles are done */
+	private final Timer prefetch_timer = new Timer(0,
+		new ActionListener()
+	{
+		public void actionPerformed(ActionEvent e) {
+			startPrefetch();
+		}
+	});
+
+	/** Time of scheduled retry for blocked tiles (ms) */
+	private long retry_at = Long.MAX_VALUE;
+
+	/** Timer to repaint when blocked tiles can be retried */
+	private final Timer retry_timer = new Timer(0, new ActionListener()
+	{
+		public void actionPerformed(ActionEvent e) {
+			retry_at = Long.MAX_VALUE;
+			fireLayerChanged(LayerChange.geometry);
+		}
+	});
+
+	/** Mosaic of tiles drawn in the previous frame */
+	private final TileMosaic mosaic = new TileMosaic();
+
+	/** Viewport tile range at one zoom level */
+	static private class Viewport {
+		private final int zoom;
+		private final int x0, x1, y0, y1;
+		private final double cx, cy;	// center (tile units)
+		private Viewport(int z, int x0, int x1, int y0, int y1,
+			double cx, double cy)
+		{
+			zoom = z;
+			this.x0 = x0;
+			this.x1 = x1;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.cx = cx;
+			this.cy = cy;
+		}
+		private boolean contains(int z, int x, int y) {
+			return z == zoom && x >= x0 && x <= x1 &&
+			       y >= y0 && y <= y1;
+		}
+		private Viewport expand(ZoomLevel z, int r) {
+			return new Viewport(zoom, zoomLimit(z, x0 - r),
+				zoomLimit(z, x1 + r), zoomLimit(z, y0 - r),
+				zoomLimit(z, y1 + r), cx, cy);
+		}
+		private boolean equals(Viewport o) {
+			return o != null && zoom == o.zoom && cx == o.cx &&
+			       cy == o.cy && x0 == o.x0 && x1 == o.x1 &&
+			       y0 == o.y0 && y1 == o.y1;
+		}
+	}
 
 	/** Create a new tile layer state */
-	public TileLayerState(TileLayer layer, MapBean mb, TileCache c) {
+	public TileLayerState(TileLayer layer, MapBean mb, TileCache.View v,
+		TileScheduler ts, TileScheduler ds)
+	{
 		super(layer, mb, new Theme("Tile", new TileSymbol()));
-		cache = c;
+		view = v;
+		cache = v.getCache();
+		scheduler = ts;
+		decoder = ds;
+		monitor = layer.getMonitor();
+		ring = layer.getPrefetchRing();
+		frame_timer.setRepeats(false);
+		prefetch_timer.setRepeats(false);
+		retry_timer.setRepeats(false);
+	}
+
+	/** Get the view of the tile cache (for statistics) */
+	public TileCache.View getCacheView() {
+		return view;
+	}
+
+	/** Dispose of the layer state */
+	@Override
+	public void dispose() {
+		frame_timer.stop();
+		prefetch_timer.stop();
+		retry_timer.stop();
+		mosaic.dispose();
+		monitor.removeView(view);
+		view.release();
+		super.dispose();
+	}
+
+	/** Create a viewport for a zoom level.
+	 * @param zoom Zoom level.
+	 * @param center Center in user coordinates.
+	 * @param hx Half width (pixels).
+	 * @param hy Half height (pixels). */
+	static private Viewport createViewport(ZoomLevel zoom, Point2D center,
+		int hx, int hy)
+	{
+		int px = (int) zoom.getPixelX(center.getX());
+		int py = (int) zoom.getPixelY(center.getY());
+		int x0 = zoomLimit(zoom, (px - hx) / 256);
+		int x1 = zoomLimit(zoom, ((px + hx) / 256) + 1);
+		int y0 = zoomLimit(zoom, (py - hy) / 256);
+		int y1 = zoomLimit(zoom, ((py + hy) / 256) + 1);
+		return new Viewport(zoom.ordinal(), x0, x1, y0, y1,
+			px / 256.0, py / 256.0);
+	}
+
+	/** Paint the layer.  Tiles are drawn into the mosaic, which is kept
+	 * between frames, so only changed tiles and newly exposed areas are
+	 * drawn.  The mosaic is then drawn in one operation. */
+	@Override
+	public void paint(final Graphics2D g) {
+		if (isVisible()) {
+			long start = System.nanoTime();
+			final Theme theme = getTheme();
+			scanTiles(new MapSearcher() {
+				public boolean next(MapObject mo) {
+					theme.draw(mosaic.getGraphics(), mo);
+					return false;
+				}
+			}, mosaic);
+			BufferedImage img = mosaic.end();
+			AffineTransform gt = g.getTransform();
+			g.setTransform(new AffineTransform());
+			g.drawImage(img, 0, 0, null);
+			g.setTransform(gt);
+			monitor.getPaintTime().recordSince(start);
+		}
 	}
 
 	/** Call the specified callback for each map object in the layer */
 	@Override
 	public MapObject forEach(MapSearcher s) {
+		return scanTiles(s, null);
+	}
+
+	/** Scan all tiles in the viewport.
+	 * @param s Callback for each map object.
+	 * @param m Mosaic being drawn (null for none). */
+	private MapObject scanTiles(MapSearcher s, TileMosaic m) {
 		MapModel model = map.getModel();
 		ZoomLevel zoom = model.getZoomLevel();
 		Dimension sz = map.getSize();
+		view.setViewport(sz.width, sz.height);
 		Point2D center = model.getCenter();
 		int hx = (int) sz.getWidth() / 2;
 		int hy = (int) sz.getHeight() / 2;
 		int px = (int) zoom.getPixelX(center.getX());
 		int py = (int) zoom.getPixelY(center.getY());
-		int x0 = zoomLimit(zoom, (px - hx) / 256);
-		int x1 = zoomLimit(zoom, ((px + hx) / 256) + 1);
+		Viewport vp = createViewport(zoom, center, hx, hy);
+		int x0 = vp.x0;
+		int x1 = vp.x1;
 		int ox = (px - hx) % 256;
-		int y0 = zoomLimit(zoom, (py - hy) / 256);
-		int y1 = zoomLimit(zoom, ((py + hy) / 256) + 1);
+		int y0 = vp.y0;
+		int y1 = vp.y1;
 		int oy = (py + hy) % 256 - 512;
+		setViewport(vp);
+		view_center = center;
+		view_hx = hx;
+		view_hy = hy;
+		if (m != null) {
+			m.begin(zoom.ordinal(), sz.width, sz.height,
+				x0 * 256 + ox, y1 * 256 + oy);
+		}
 		for (int x = x0; x <= x1; x++) {
 			int xp = (x - x0) * 256 - ox;
 			for (int y = y0; y <= y1; y++) {
 				int yp = (y1 - y) * 256 + oy;
-				String tile = getTileName(zoom, x, y);
-				Image img = getTile(tile);
-				if (img != null)
-					s.next(new TileMapObject(img, xp, yp));
-				else {
-					if (!isTileMissing(tile))
-						createTileWorker(tile);
+				long tile = getTileKey(zoom, x, y);
+				Image img = view.getTile(tile);
+				if (img != null) {
+					if (m == null ||
+					    !m.isDrawn(tile, img, xp, yp))
+					{
+						// Translucent tiles must not
+						// blend with previous images
+						if (m != null)
+							m.clearTile(xp, yp);
+						s.next(new TileMapObject(img,
+							xp, yp));
+						if (m != null)
+							monitor.tileDrawn();
+					}
+					if (m != null)
+						m.setDrawn(tile, img);
+					if (cache.isExpired(tile) &&
+					    !isPending(tile) &&
+					    !isTileMissing(tile) &&
+					    addPending(tile))
+						requestTile(zoom, x, y, tile,
+							false);
+				} else {
+					if (m != null) {
+						m.clearTile(xp, yp);
+						monitor.fallbackDrawn();
+					}
+					drawFallback(s, zoom, x, y, xp, yp);
+					// Cached tiles are decoded even if
+					// expired or blocked
+					boolean c = cache.contains(tile);
+					if (c && addDecoding(tile))
+						requestDecode(zoom, x, y, tile);
+					if ((!c || cache.isExpired(tile)) &&
+					    !isPending(tile) &&
+					    !isTileMissing(tile) &&
+					    addPending(tile))
+						requestTile(zoom, x, y, tile,
+							false);
 				}
 			}
 		}
+		startPrefetch();
 		return null;
 	}
 
+	/** Start prefetching for the current viewport, once no visible
+	 * tiles are pending.  This is called when painting, and when the
+	 * last visible tile request finishes (by the prefetch timer). */
+	private void startPrefetch() {
+		Viewport vp = viewport;
+		if (ring >= 0 && vp != null && !prefetched &&
+		    n_visible.get() == 0)
+		{
+			prefetched = true;
+			prefetch(ZoomLevel.fromOrdinal(vp.zoom), vp,
+				view_center, view_hx, view_hy);
+		}
+	}
+
+	/** Draw fallback images for a tile which is not cached.  The
+	 * nearest cached ancestor tile is cropped and scaled up, then any
+	 * cached child tiles are scaled down over it.  Only decoded tiles
+	 * are used, so nothing is decoded while painting. */
+	private void drawFallback(MapSearcher s, ZoomLevel zoom, int x, int y,
+		int xp, int yp)
+	{
+		int z = zoom.ordinal();
+		int gy = zoom.n_tiles - 1 - y;
+		for (int k = 1; k <= FALLBACK_LEVELS && k <= z; k++) {
+			Image img = cache.peekTile(TileKey.pack(z - k, x >> k,
+				gy >> k));
+			if (img != null) {
+				int sz = 256 >> k;
+				int m = (1 << k) - 1;
+				s.next(new TileMapObject(img, xp, yp,
+					(x & m) * sz, (gy & m) * sz, sz, sz,
+					256, 256));
+				break;
+			}
+		}
+		if (ZoomLevel.fromOrdinal(z + 1) != null) {
+			for (int i = 0; i < 2; i++) {
+				for (int j = 0; j < 2; j++) {
+					Image img = cache.peekTile(TileKey.pack(
+						z + 1, x * 2 + i, gy * 2 + j));
+					if (img != null) {
+						s.next(new TileMapObject(img,
+							xp + i * 128,
+							yp + j * 128, 0, 0,
+							256, 256, 128, 128));
+					}
+				}
+			}
+		}
+	}
+
+	/** Set the current viewport.  If it has changed, queued requests
+	 * are rescheduled, dropping any which are no longer needed. */
+	private void setViewport(Viewport vp) {
+		if (!vp.equals(viewport)) {
+			viewport = vp;
+			prefetched = false;
+			prefetch_views = new Viewport[0];
+			scheduler.reschedule();
+			decoder.reschedule();
+		}
+	}
+
+	/** Prefetch tiles around the viewport, and for the next zoom levels
+	 * in and out.  This is only done once all visible tiles have been
+	 * requested, and uses low priority requests.  To respect the cache
+	 * budget, no more than half of the compressed tier is prefetched. */
+	private void prefetch(ZoomLevel zoom, Viewport vp, Point2D center,
+		int hx, int hy)
+	{
+		ArrayList<Viewport> views = new ArrayList<Viewport>(3);
+		views.add(vp.expand(zoom, ring));
+		ZoomLevel zin = ZoomLevel.fromOrdinal(zoom.ordinal() + 1);
+		if (zin != null)
+			views.add(createViewport(zin, center, hx, hy));
+		ZoomLevel zout = ZoomLevel.fromOrdinal(zoom.ordinal() - 1);
+		if (zout != null)
+			views.add(createViewport(zout, center, hx, hy));
+		prefetch_views = views.toArray(new Viewport[0]);
+		long n_max = cache.getCompressedLimit() /
+			TileCache.COMPRESSED_TILE_BYTES / 2;
+		int n_tiles = 0;
+		for (Viewport v: views) {
+			ZoomLevel z = ZoomLevel.fromOrdinal(v.zoom);
+			for (int x = v.x0; x <= v.x1; x++) {
+				for (int y = v.y0; y <= v.y1; y++) {
+					if (n_tiles >= n_max)
+						return;
+					if (prefetchTile(z, x, y))
+						n_tiles++;
+				}
+			}
+		}
+	}
+
+	/** Prefetch one tile.
+	 * @return true if a request was made. */
+	private boolean prefetchTile(ZoomLevel zoom, int x, int y) {
+		if (viewport.contains(zoom.ordinal(), x, y))
+			return false;
+		long tile = getTileKey(zoom, x, y);
+		if (isPending(tile) || cache.contains(tile) ||
+		    cache.isBlocked(tile) || !addPending(tile))
+			return false;
+		requestTile(zoom, x, y, tile, true);
+		return true;
+	}
+
+	/** Check if a prefetch request is still needed */
+	private boolean isPrefetchNeeded(int z, int x, int y) {
+		for (Viewport v: prefetch_views) {
+			if (v.contains(z, x, y))
+				return true;
+		}
+		return false;
+	}
+
 	/** Limit X or Y tile based on zoom level */
-	private int zoomLimit(ZoomLevel zoom, int xory) {
+	static private int zoomLimit(ZoomLevel zoom, int xory) {
 		return Math.max(0, Math.min(zoom.n_tiles - 1, xory));
 	}
 
-	/** Get a tile name */
-	private String getTileName(ZoomLevel zoom, int tx, int ty) {
+	/** Get a tile key */
+	static private long getTileKey(ZoomLevel zoom, int tx, int ty) {
 		int gy = zoom.n_tiles - 1 - ty;
-		return "" + zoom.ordinal() + '/' + tx + '/' + gy;
+		return TileKey.pack(zoom.ordinal(), tx, gy);
+	}
+
+	/** Is the given tile missing (or backing off after a failure)?
+	 * If so, a repaint is scheduled for when it can be retried, since
+	 * nothing else may cause one. */
+	private boolean isTileMissing(long tile) {
+		long retry = cache.getRetryTime(tile);
+		long now = System.currentTimeMillis();
+		if (now < retry) {
+			scheduleRetry(retry, now);
+			return true;
+		} else
+			return false;
 	}
 
-	/** Is the given tile missing? */
-	private boolean isTileMissing(String tile) {
-		synchronized (no_tile) {
-			return no_tile.contains(tile);
+	/** Schedule a repaint to retry blocked tiles, unless an earlier
+	 * one is already scheduled */
+	private void scheduleRetry(long retry, long now) {
+		if (retry < retry_at) {
+			retry_at = retry;
+			long ms = Math.min(retry - now + 1, Integer.MAX_VALUE);
+			retry_timer.setInitialDelay((int) ms);
+			retry_timer.restart();
 		}
 	}
 
-	/** Get a tile from the tile cache */
-	private Image getTile(String tile) {
-		try {
-			return cache.getTile(tile);
+	/** Check if a tile has a pending lookup */
+	private boolean isPending(long tile) {
+		synchronized (pending) {
+			return pending.containsKey(tile);
 		}
-		catch (IOException e) {
-			System.err.print("I/O Error ");
-			System.err.print(e.getMessage());
-			System.err.println(" reading tile: " + tile);
-			return null;
+	}
+
+	/** Add a tile to the pending set.
+	 * @return true if the tile was not already pending. */
+	private boolean addPending(long tile) {
+		synchronized (pending) {
+			return pending.put(tile, Boolean.TRUE) == null;
+		}
+	}
+
+	/** Remove a tile from the pending set */
+	private void removePending(long tile) {
+		synchronized (pending) {
+			pending.remove(tile);
 		}
 	}
 
-	/** Create a worker to lookup one tile */
-	private void createTileWorker(final String tile) {
-		SwingWorker worker = new SwingWorker<String, Void>() {
-			@Override
-			public String doInBackground() {
-				return lookupTile(tile);
+	/** Add a tile to the decoding set.
+	 * @return true if the tile was not already being decoded. */
+	private boolean addDecoding(long tile) {
+		synchronized (decoding) {
+			return decoding.put(tile, Boolean.TRUE) == null;
+		}
+	}
+
+	/** Remove a tile from the decoding set */
+	private void removeDecoding(long tile) {
+		synchronized (decoding) {
+			decoding.remove(tile);
+		}
+	}
+
+	/** Request to fetch (or decode) one tile */
+	private class TileRequest extends TileScheduler.Request {
+		private final int zoom;
+		private final int x;
+		private final int y;
+		private final long tile;
+		private final boolean prefetch;
+		private final boolean cached;	// only needs decoding
+		private TileRequest(int z, int tx, int ty, long t,
+			boolean pf, boolean c)
+		{
+			zoom = z;
+			x = tx;
+			y = ty;
+			tile = t;
+			prefetch = pf;
+			cached = c;
+		}
+
+		/** Get the priority (distance from viewport center) */
+		@Override
+		protected double getPriority() {
+			Viewport vp = viewport;
+			int dz = zoom - vp.zoom;
+			double dx = x + 0.5 - Math.scalb(vp.cx, dz);
+			double dy = y + 0.5 - Math.scalb(vp.cy, dz);
+			double p = Math.hypot(dx, dy) +
+				Math.abs(dz) * ZOOM_PRIORITY;
+			return prefetch ? p + PREFETCH_PRIORITY : p;
+		}
+
+		/** Check if the tile is no longer needed */
+		@Override
+		protected boolean isStale() {
+			return prefetch
+			     ? !isPrefetchNeeded(zoom, x, y)
+			     : !viewport.contains(zoom, x, y);
+		}
+
+		/** Cancel the request */
+		@Override
+		protected void cancel() {
+			finish();
+		}
+
+		/** Lookup (or decode) the tile */
+		@Override
+		public void run() {
+			try {
+				if (cached)
+					decodeTile(tile);
+				else
+					lookupTile(tile, !prefetch);
 			}
-			@Override
-			public void done() {
-				try {
-					String tile = get();
-					if (tile != null) {
-						fireLayerChanged(
-							LayerChange.geometry);
-					}
-				}
-				catch (Exception e) {
-					// ignore
-				}
+			finally {
+				finish();
 			}
-		};
-		worker.execute();
+			// A prefetched tile may have become visible.  Failed
+			// tiles are repainted too, to schedule a retry.
+			if (viewport.contains(zoom, x, y))
+				tileLoaded();
+		}
+
+		/** Finish the request.  When no visible tiles are left
+		 * pending, prefetching is started without waiting for the
+		 * next paint (which may never come if this tile failed). */
+		private void finish() {
+			if (cached)
+				removeDecoding(tile);
+			else
+				removePending(tile);
+			if (!prefetch && n_visible.decrementAndGet() == 0 &&
+			    ring >= 0)
+				prefetch_timer.start();
+		}
 	}
 
-	/** Lookup one tile */
-	private String lookupTile(String tile) {
+	/** Schedule a request to fetch one tile */
+	private void requestTile(ZoomLevel zoom, int x, int y, long tile,
+		boolean prefetch)
+	{
+		if (!prefetch)
+			n_visible.incrementAndGet();
+		scheduler.submit(new TileRequest(zoom.ordinal(), x, y, tile,
+			prefetch, false));
+	}
+
+	/** Schedule a request to decode one cached tile.  This uses the
+	 * decode scheduler, so it doesn't wait behind tiles being fetched
+	 * (or revalidated). */
+	private void requestDecode(ZoomLevel zoom, int x, int y, long tile) {
+		n_visible.incrementAndGet();
+		decoder.submit(new TileRequest(zoom.ordinal(), x, y, tile,
+			false, true));
+	}
+
+	/** Notify listeners that a tile has been loaded.  Arrivals are
+	 * coalesced, so that listeners get at most one geometry change per
+	 * frame interval. */
+	private void tileLoaded() {
+		if (arrived.compareAndSet(false, true))
+			frame_timer.start();
+	}
+
+	/** Lookup one tile.
+	 * @param tile Tile key.
+	 * @param decode Flag to decode the tile for drawing. */
+	private void lookupTile(long tile, boolean decode) {
 		try {
-			cache.lookupTile(tile);
-			return tile;
+			view.lookupTile(tile, decode);
 		}
 		catch (FileNotFoundException e) {
-			synchronized (no_tile) {
-				no_tile.add(tile);
-			}
+			// recorded in tile failures
 		}
 		catch (IOException e) {
 			System.err.print("I/O Error ");
 			System.err.print(e.getMessage());
-			System.err.println(" loading tile: " + tile);
+			System.err.println(" loading tile: " +
+				TileKey.toName(tile));
+		}
+	}
+
+	/** Decode one cached tile.
+	 * @param tile Tile key. */
+	private void decodeTile(long tile) {
+		try {
+			cache.prepareTile(tile);
+		}
+		catch (IOException e) {
+			System.err.print("I/O Error ");
+			System.err.print(e.getMessage());
+			System.err.println(" reading tile: " +
+				TileKey.toName(tile));
 		}
-		return null;
 	}
 }
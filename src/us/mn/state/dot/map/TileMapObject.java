@@ -14,6 +14,7 @@
  */
 package us.mn.state.dot.map;
 
+import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Shape;
 import java.awt.geom.AffineTransform;
@@ -52,11 +53,33 @@ public class TileMapObject implements MapObject {
 		return null;
 	}
 
-	/** Create a new tile map object */
-	public TileMapObject(Image img, int x, int y) {
+	/** Create a new tile map object.
+	 * @param img Tile image.
+	 * @param x X position (pixels).
+	 * @param y Y position (pixels).
+	 * @param sx Source X offset within image.
+	 * @param sy Source Y offset within image.
+	 * @param sw Source width.
+	 * @param sh Source height.
+	 * @param dw Destination width.
+	 * @param dh Destination height. */
+	public TileMapObject(Image img, int x, int y, int sx, int sy, int sw,
+		int sh, int dw, int dh)
+	{
 		image = img;
 		transform = new AffineTransform();
 		transform.translate(x, y);
+		src_x = sx;
+		src_y = sy;
+		src_width = sw;
+		src_height = sh;
+		width = dw;
+		height = dh;
+	}
+
+	/** Create a new tile map object (with an unscaled image) */
+	public TileMapObject(Image img, int x, int y) {
+		this(img, x, y, 0, 0, -1, -1, -1, -1);
 	}
 
 	/** Tile image */
@@ -66,4 +89,37 @@ public class TileMapObject implements MapObject {
 	public Image getImage() {
 		return image;
 	}
+
+	/** Source X offset */
+	private final int src_x;
+
+	/** Source Y offset */
+	private final int src_y;
+
+	/** Source width (-1 for whole image) */
+	private final int src_width;
+
+	/** Source height (-1 for whole image) */
+	private final int src_height;
+
+	/** Destination width */
+	private final int width;
+
+	/** Destination height */
+	private final int height;
+
+	/** Check if the image is drawn unscaled */
+	public boolean isUnscaled() {
+		return src_width < 0;
+	}
+
+	/** Draw the image (translation must already be applied) */
+	public void drawImage(Graphics2D g) {
+		if (isUnscaled())
+			g.drawImage(image, 0, 0, null);
+		else {
+			g.drawImage(image, 0, 0, width, height, src_x, src_y,
+				src_x + src_width, src_y + src_height, null);
+		}
+	}
 }
@@ -0,0 +1,179 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+/**
+ * A tile mosaic is a viewport-sized image of the tiles of one zoom level.
+ * When the map is panned, the mosaic is shifted, and only the newly
+ * exposed area needs to be drawn.  The image drawn for each tile is
+ * remembered, so a tile is only drawn again when its image changes (for
+ * example, when it arrives after a fallback was drawn).
+ *
+ * @author Douglas Lau
+ */
+class TileMosaic {
+
+	/** Size of one tile (pixels) */
+	static private final int TILE_SZ = 256;
+
+	/** Transparent color for clearing */
+	static private final Color CLEAR = new Color(0, 0, 0, 0);
+
+	/** Identity transform */
+	static private final AffineTransform IDENTITY = new AffineTransform();
+
+	/** Mosaic image (null before first frame) */
+	private BufferedImage image;
+
+	/** Graphics for current frame */
+	private Graphics2D graphics;
+
+	/** Zoom level ordinal of mosaic */
+	private int zoom = -1;
+
+	/** X origin: screen X of a tile is (x * TILE_SZ - ox) */
+	private int ox;
+
+	/** Y origin: screen Y of a tile is (oy - y * TILE_SZ) */
+	private int oy;
+
+	/** Area kept from the previous frame (screen pixels) */
+	private Rectangle kept = new Rectangle();
+
+	/** Images drawn for each tile in the previous frame */
+	private LongHashMap<Image> drawn = new LongHashMap<Image>();
+
+	/** Images drawn for each tile in the current frame */
+	private LongHashMap<Image> next = new LongHashMap<Image>();
+
+	/** Begin a frame.  If the zoom level and size are unchanged, the
+	 * previous frame is shifted to the new origin.
+	 * @param z Zoom level ordinal.
+	 * @param w Width (pixels).
+	 * @param h Height (pixels).
+	 * @param x X origin (tile X times TILE_SZ minus screen X).
+	 * @param y Y origin (screen Y plus tile Y times TILE_SZ).
+	 * @return Graphics for drawing tiles into the mosaic. */
+	public Graphics2D begin(int z, int w, int h, int x, int y) {
+		int dx = ox - x;
+		int dy = y - oy;
+		boolean resized = image == null || image.getWidth() != w ||
+			image.getHeight() != h;
+		if (resized) {
+			image = CompatibleImage.create(w, h,
+				Transparency.TRANSLUCENT);
+		}
+		graphics = image.createGraphics();
+		graphics.setBackground(CLEAR);
+		if (resized || z != zoom || Math.abs(dx) >= w ||
+		    Math.abs(dy) >= h)
+		{
+			graphics.clearRect(0, 0, w, h);
+			drawn.clear();
+			kept = new Rectangle();
+		} else {
+			if (dx != 0 || dy != 0)
+				shift(w, h, dx, dy);
+			kept = new Rectangle(dx, dy, w, h).intersection(
+				new Rectangle(0, 0, w, h));
+		}
+		zoom = z;
+		ox = x;
+		oy = y;
+		return graphics;
+	}
+
+	/** Get the graphics for the current frame.  The transform is reset
+	 * to identity (screen pixels). */
+	public Graphics2D getGraphics() {
+		graphics.setTransform(IDENTITY);
+		return graphics;
+	}
+
+	/** Shift the mosaic and clear the exposed strips */
+	private void shift(int w, int h, int dx, int dy) {
+		// Transparent pixels must replace the destination too
+		Composite c = graphics.getComposite();
+		graphics.setComposite(AlphaComposite.Src);
+		graphics.copyArea(0, 0, w, h, dx, dy);
+		graphics.setComposite(c);
+		if (dx > 0)
+			graphics.clearRect(0, 0, dx, h);
+		else if (dx < 0)
+			graphics.clearRect(w + dx, 0, -dx, h);
+		if (dy > 0)
+			graphics.clearRect(0, 0, w, dy);
+		else if (dy < 0)
+			graphics.clearRect(0, h + dy, w, -dy);
+	}
+
+	/** Check if a tile image is already drawn in the mosaic.
+	 * @param tile Tile key.
+	 * @param img Current tile image.
+	 * @param xp Screen X of tile.
+	 * @param yp Screen Y of tile.
+	 * @return true if the visible part of the tile was kept from the
+	 *         previous frame with the same image. */
+	public boolean isDrawn(long tile, Image img, int xp, int yp) {
+		if (drawn.peek(tile) != img)
+			return false;
+		Rectangle r = new Rectangle(xp, yp, TILE_SZ, TILE_SZ)
+			.intersection(new Rectangle(0, 0, image.getWidth(),
+			image.getHeight()));
+		return r.isEmpty() || kept.contains(r);
+	}
+
+	/** Record the image drawn for a tile in the current frame */
+	public void setDrawn(long tile, Image img) {
+		next.put(tile, img);
+	}
+
+	/** Clear the area of a tile, before drawing it again (or drawing
+	 * fallback images) */
+	public void clearTile(int xp, int yp) {
+		graphics.setTransform(IDENTITY);
+		graphics.clearRect(xp, yp, TILE_SZ, TILE_SZ);
+	}
+
+	/** End a frame.
+	 * @return Mosaic image. */
+	public BufferedImage end() {
+		graphics.dispose();
+		graphics = null;
+		LongHashMap<Image> d = drawn;
+		drawn = next;
+		next = d;
+		next.clear();
+		return image;
+	}
+
+	/** Release the mosaic image */
+	public void dispose() {
+		image = null;
+		zoom = -1;
+		drawn.clear();
+		next.clear();
+	}
+}
@@ -0,0 +1,680 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A tile pack is an append-only file of tile images, with an index kept in
+ * memory.  Each record is self-describing, so the index can be rebuilt by
+ * scanning record headers.  To open large packs quickly, the index is
+ * saved to a file (".idx") when the pack is closed or compacted, and only
+ * records past the end of the saved index are scanned when the pack is
+ * opened.  A writable pack deletes its index file when opened, so an
+ * index can't outlive changes to the pack.  Records also hold the cache
+ * validators of each tile, for revalidation.  Reads go through a
+ * memory-mapped view of the file, which is mapped after scanning.  A
+ * corrupt pack is truncated after the last valid record.  Slices of the
+ * mapped view are never handed out by a writable pack, so its mapping can
+ * be released before the file is truncated or replaced (which fails on
+ * some platforms while a mapping is live).  When the pack grows past its
+ * size limit, it is compacted, keeping the most recently used tiles.  A
+ * pack can also be opened read-only, as a tile source; records are then
+ * checked when they are read instead of when the pack is opened.
+ *
+ * @author Douglas Lau
+ */
+public class TilePack {
+
+	/** Magic number at start of pack file ("MNTP") */
+	static private final int PACK_MAGIC = 0x4D4E5450;
+
+	/** Pack file format version */
+	static private final int PACK_VERSION = 3;
+
+	/** Size of pack file header */
+	static private final int PACK_HEADER = 8;
+
+	/** Magic number at start of index file ("MNTI") */
+	static private final int INDEX_MAGIC = 0x4D4E5449;
+
+	/** Magic number at start of each record */
+	static private final int RECORD_MAGIC = 0x54494C45;
+
+	/** Size of record header (magic, key, validator length, data length,
+	 * CRC of validators and data) */
+	static private final int RECORD_HEADER = 24;
+
+	/** Maximum tile data length */
+	static public final int MAX_DATA = 16 * 1024 * 1024;
+
+	/** Maximum pack size (limited by mapped buffer size) */
+	static public final long MAX_PACK_SIZE = Integer.MAX_VALUE;
+
+	/** Index entry for one tile */
+	static private class Entry {
+		private final long pos;	// position of validators
+		private final int vlen;	// length of validators
+		private final int len;	// length of data
+		private final int crc;	// CRC-32 of validators and data
+		private final TileValidator validator;
+		private Entry(long p, int vl, int l, int c, TileValidator v) {
+			pos = p;
+			vlen = vl;
+			len = l;
+			crc = c;
+			validator = v;
+		}
+	}
+
+	/** Pack file */
+	private final File file;
+
+	/** Maximum size of pack file (bytes) */
+	private final long max_size;
+
+	/** Flag for read-only pack */
+	private final boolean read_only;
+
+	/** Index of tile keys to entries (least recently used first) */
+	private final LongHashMap<Entry> index =
+		new LongHashMap<Entry>(1024, true);
+
+	/** Random access file */
+	private RandomAccessFile raf;
+
+	/** File channel */
+	private FileChannel channel;
+
+	/** Mapped view of file */
+	private MappedByteBuffer mapped;
+
+	/** Current file length */
+	private long length;
+
+	/** Create a tile pack.
+	 * @param f Pack file (created if it does not exist).
+	 * @param ms Maximum size of pack file (bytes). */
+	public TilePack(File f, long ms) throws IOException {
+		this(f, ms, false);
+	}
+
+	/** Create a tile pack */
+	private TilePack(File f, long ms, boolean ro) throws IOException {
+		file = f;
+		max_size = Math.max(PACK_HEADER, Math.min(ms, MAX_PACK_SIZE));
+		read_only = ro;
+		open();
+	}
+
+	/** Get the index file for a pack file */
+	static private File indexFile(File f) {
+		return new File(f.getPath() + ".idx");
+	}
+
+	/** Open an existing tile pack read-only.
+	 * @param f Pack file. */
+	static public TilePack openReadOnly(File f) throws IOException {
+		return new TilePack(f, MAX_PACK_SIZE, true);
+	}
+
+	/** Open the pack file and build the index */
+	private void open() throws IOException {
+		raf = new RandomAccessFile(file, read_only ? "r" : "rw");
+		channel = raf.getChannel();
+		length = channel.size();
+		if (!checkHeader()) {
+			if (read_only) {
+				close();
+				throw new IOException("Invalid tile pack: " +
+					file);
+			}
+			reset();
+		} else {
+			scan();
+			mapped = map();
+		}
+	}
+
+	/** Check the pack file header */
+	private boolean checkHeader() throws IOException {
+		if (length < PACK_HEADER)
+			return false;
+		ByteBuffer hdr = ByteBuffer.allocate(PACK_HEADER);
+		channel.read(hdr, 0);
+		return hdr.getInt(0) == PACK_MAGIC &&
+		       hdr.getInt(4) == PACK_VERSION;
+	}
+
+	/** Reset the pack file to empty */
+	private void reset() throws IOException {
+		index.clear();
+		unmap();
+		indexFile(file).delete();
+		channel.truncate(0);
+		ByteBuffer hdr = ByteBuffer.allocate(PACK_HEADER);
+		hdr.putInt(PACK_MAGIC);
+		hdr.putInt(PACK_VERSION);
+		hdr.flip();
+		channel.write(hdr, 0);
+		length = PACK_HEADER;
+		mapped = map();
+	}
+
+	/** Map the pack file read-only */
+	private MappedByteBuffer map() throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+	}
+
+	/** Release the mapped view of the file.  A writable pack hands out
+	 * no slices of it, so it is unmapped right away instead of when it
+	 * is garbage collected. */
+	private void unmap() {
+		MappedByteBuffer m = mapped;
+		mapped = null;
+		if (m != null && !read_only)
+			release(m);
+	}
+
+	/** Release a mapped buffer (best effort, using JDK internals) */
+	static private void release(MappedByteBuffer m) {
+		try {
+			// Java 9 and later
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			Method clean = c.getMethod("invokeCleaner",
+				ByteBuffer.class);
+			clean.invoke(f.get(null), m);
+			return;
+		}
+		catch (Exception e) {
+			// fall through
+		}
+		try {
+			// Java 7 and 8
+			Method cm = m.getClass().getMethod("cleaner");
+			cm.setAccessible(true);
+			Object cleaner = cm.invoke(m);
+			Method clean = cleaner.getClass().getMethod("clean");
+			clean.setAccessible(true);
+			clean.invoke(cleaner);
+		}
+		catch (Exception e) {
+			// released when garbage collected
+		}
+	}
+
+	/** Scan records to build the index, starting after the records in
+	 * the index file.  Records are read through the file channel, so the
+	 * file is not mapped until any corrupt records have been truncated. */
+	private void scan() throws IOException {
+		long pos = readIndex();
+		while (pos < length) {
+			long next = scanRecord(pos);
+			if (next < 0)
+				break;
+			pos = next;
+		}
+		if (pos < length && read_only) {
+			System.err.println("TilePack: ignoring " + file +
+				" after " + pos + " of " + length);
+		} else if (pos < length) {
+			System.err.println("TilePack: truncating " + file +
+				" at " + pos + " of " + length);
+			channel.truncate(pos);
+			length = pos;
+		}
+	}
+
+	/** Read the index file, if there is one.  A writable pack deletes
+	 * it, since it will not match after the pack is changed.
+	 * @return Position after the last indexed record. */
+	private long readIndex() {
+		File f = indexFile(file);
+		if (!f.exists())
+			return PACK_HEADER;
+		long end;
+		try {
+			end = loadIndex(f);
+		}
+		catch (IOException e) {
+			System.err.println("TilePack: ignoring " + f + ": " +
+				e.getMessage());
+			end = PACK_HEADER;
+		}
+		if (!read_only && !f.delete())
+			end = PACK_HEADER;
+		if (end == PACK_HEADER)
+			index.clear();
+		return end;
+	}
+
+	/** Load entries from an index file.
+	 * @return Position after the last indexed record. */
+	private long loadIndex(File f) throws IOException {
+		CheckedInputStream cis = new CheckedInputStream(
+			new BufferedInputStream(new FileInputStream(f)),
+			new CRC32());
+		DataInputStream dis = new DataInputStream(cis);
+		try {
+			if (dis.readInt() != INDEX_MAGIC ||
+			    dis.readInt() != PACK_VERSION)
+				throw new IOException("Invalid index");
+			long end = dis.readLong();
+			int n = dis.readInt();
+			if (end < PACK_HEADER || end > length || n < 0)
+				throw new IOException("Index does not match");
+			for (int i = 0; i < n; i++) {
+				long key = dis.readLong();
+				long pos = dis.readLong();
+				int vlen = dis.readInt();
+				int len = dis.readInt();
+				int crc = dis.readInt();
+				if (vlen < 0 || vlen > MAX_DATA || len < 0 ||
+				    len > MAX_DATA || pos < PACK_HEADER ||
+				    pos + vlen + len > end)
+					throw new IOException("Invalid entry");
+				TileValidator v = null;
+				if (vlen > 0) {
+					byte[] vb = new byte[vlen];
+					dis.readFully(vb);
+					v = TileValidator.decode(
+						ByteBuffer.wrap(vb), vlen);
+					if (v == null) {
+						throw new IOException(
+							"Invalid validator");
+					}
+				}
+				index.put(key, new Entry(pos, vlen, len, crc,
+					v));
+			}
+			int c = (int) cis.getChecksum().getValue();
+			if (dis.readInt() != c)
+				throw new IOException("Bad index CRC");
+			return end;
+		}
+		finally {
+			dis.close();
+		}
+	}
+
+	/** Write the index to a file, least recently used first */
+	private void writeIndex() throws IOException {
+		File f = indexFile(file);
+		CheckedOutputStream cos = new CheckedOutputStream(
+			new BufferedOutputStream(new FileOutputStream(f)),
+			new CRC32());
+		DataOutputStream dos = new DataOutputStream(cos);
+		try {
+			dos.writeInt(INDEX_MAGIC);
+			dos.writeInt(PACK_VERSION);
+			dos.writeLong(length);
+			dos.writeInt(index.size());
+			for (long k: index.keys()) {
+				Entry e = index.peek(k);
+				dos.writeLong(k);
+				dos.writeLong(e.pos);
+				dos.writeInt(e.vlen);
+				dos.writeInt(e.len);
+				dos.writeInt(e.crc);
+				if (e.vlen > 0) {
+					ByteBuffer vb = ByteBuffer.allocate(
+						e.vlen);
+					e.validator.encode(vb);
+					dos.write(vb.array());
+				}
+			}
+			dos.writeInt((int) cos.getChecksum().getValue());
+		}
+		finally {
+			dos.close();
+		}
+	}
+
+	/** Scan one record.
+	 * @param pos Position of record.
+	 * @return Position of next record, or -1 if record is invalid. */
+	private long scanRecord(long pos) throws IOException {
+		if (pos + RECORD_HEADER > length)
+			return -1;
+		ByteBuffer hdr = read(pos, RECORD_HEADER);
+		if (hdr == null || hdr.getInt(0) != RECORD_MAGIC)
+			return -1;
+		long key = hdr.getLong(4);
+		int vlen = hdr.getInt(12);
+		int len = hdr.getInt(16);
+		int crc = hdr.getInt(20);
+		if (vlen < 0 || vlen > MAX_DATA || len < 0 || len > MAX_DATA)
+			return -1;
+		long vpos = pos + RECORD_HEADER;
+		if (vpos + vlen + len > length)
+			return -1;
+		// Read-only packs are checked on lookup, to open quickly
+		ByteBuffer b = read(vpos, read_only ? vlen : vlen + len);
+		if (b == null || (!read_only && checksum(b) != crc))
+			return -1;
+		TileValidator v = null;
+		if (vlen > 0) {
+			v = TileValidator.decode(b, vlen);
+			if (v == null)
+				return -1;
+		}
+		// Later records replace earlier ones for the same tile
+		index.put(key, new Entry(vpos, vlen, len, crc, v));
+		return vpos + vlen + len;
+	}
+
+	/** Read bytes from the pack file.
+	 * @param pos Position to read.
+	 * @param len Number of bytes.
+	 * @return Buffer of bytes read, or null at end of file. */
+	private ByteBuffer read(long pos, int len) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(len);
+		while (b.hasRemaining()) {
+			if (channel.read(b, pos + b.position()) < 0)
+				return null;
+		}
+		b.flip();
+		return b;
+	}
+
+	/** Get a slice of the mapped buffer */
+	private ByteBuffer slice(int pos, int len) {
+		ByteBuffer b = mapped.duplicate();
+		b.position(pos);
+		b.limit(pos + len);
+		return b.slice();
+	}
+
+	/** Calculate CRC-32 of a buffer */
+	static private int checksum(ByteBuffer b) {
+		CRC32 crc = new CRC32();
+		update(crc, b);
+		return (int) crc.getValue();
+	}
+
+	/** Update a CRC-32 with the remaining bytes of a buffer */
+	static private void update(CRC32 crc, ByteBuffer b) {
+		if (b.hasArray()) {
+			crc.update(b.array(), b.arrayOffset() + b.position(),
+				b.remaining());
+		} else {
+			byte[] buf = new byte[4096];
+			ByteBuffer d = b.duplicate();
+			while (d.hasRemaining()) {
+				int n = Math.min(buf.length, d.remaining());
+				d.get(buf, 0, n);
+				crc.update(buf, 0, n);
+			}
+		}
+	}
+
+	/** Check if the pack contains a tile */
+	public synchronized boolean contains(long k) {
+		return index.containsKey(k);
+	}
+
+	/** Get the number of tiles in the pack */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/** Get the length of the pack file (bytes) */
+	public synchronized long length() {
+		return length;
+	}
+
+	/** Get the cache validators of a tile.
+	 * @param k Tile key.
+	 * @return Validators, or null if none are stored. */
+	public synchronized TileValidator getValidator(long k) {
+		Entry e = index.peek(k);
+		return (e != null) ? e.validator : null;
+	}
+
+	/** Lookup a tile in the pack.
+	 * @param k Tile key.
+	 * @return Tile data (copied from the mapped file), or null. */
+	public synchronized byte[] lookup(long k) throws IOException {
+		ByteBuffer b = find(k);
+		if (b != null) {
+			byte[] data = new byte[b.remaining()];
+			b.get(data);
+			return data;
+		} else
+			return null;
+	}
+
+	/** Lookup a tile in the pack, without copying (for read-only
+	 * packs; a writable pack returns a copy, since its mapping may be
+	 * released when it is compacted or closed).
+	 * @param k Tile key.
+	 * @return Read-only slice of the mapped file, or null. */
+	public synchronized ByteBuffer lookupBuffer(long k) throws IOException {
+		if (!read_only) {
+			byte[] data = lookup(k);
+			return (data != null)
+			      ? ByteBuffer.wrap(data).asReadOnlyBuffer()
+			      : null;
+		}
+		ByteBuffer b = find(k);
+		return (b != null) ? b.asReadOnlyBuffer() : null;
+	}
+
+	/** Find a tile and check its CRC.
+	 * @param k Tile key.
+	 * @return Slice of the mapped file with tile data, or null. */
+	private ByteBuffer find(long k) throws IOException {
+		Entry e = index.get(k);
+		if (e == null || channel == null)
+			return null;
+		int rlen = e.vlen + e.len;
+		if (e.pos + rlen > mapped.capacity()) {
+			unmap();
+			mapped = map();
+		}
+		ByteBuffer b = slice((int) e.pos, rlen);
+		if (checksum(b) != e.crc) {
+			System.err.println("TilePack: bad CRC for " +
+				TileKey.toName(k));
+			index.remove(k);
+			return null;
+		}
+		return slice((int) e.pos + e.vlen, e.len);
+	}
+
+	/** Store a tile in the pack, without validators.
+	 * @param k Tile key.
+	 * @param data Tile data. */
+	public void store(long k, byte[] data) throws IOException {
+		store(k, ByteBuffer.wrap(data), null);
+	}
+
+	/** Store a tile in the pack.
+	 * @param k Tile key.
+	 * @param data Tile data (from position to limit; not modified).
+	 * @param v Cache validators (null for none). */
+	public synchronized void store(long k, ByteBuffer data,
+		TileValidator v) throws IOException
+	{
+		if (!add(k, data, v, true)) {
+			int vlen = (v != null) ? v.encodedSize() : 0;
+			int rlen = RECORD_HEADER + vlen + data.remaining();
+			compact(max_size / 2 - rlen);
+			add(k, data, v, true);
+		}
+	}
+
+	/** Add a tile to the pack, without compacting.  This is for
+	 * building packs, where no tiles should be dropped.
+	 * @param k Tile key.
+	 * @param data Tile data (from position to limit; not modified).
+	 * @param v Cache validators (null for none).
+	 * @return false if the pack is full. */
+	public synchronized boolean add(long k, ByteBuffer data,
+		TileValidator v) throws IOException
+	{
+		return add(k, data, v, false);
+	}
+
+	/** Add a tile to the pack, without compacting.
+	 * @param skip Flag to skip (not fail) if closed or tile too large.
+	 * @return false if the pack is full. */
+	private boolean add(long k, ByteBuffer data, TileValidator v,
+		boolean skip) throws IOException
+	{
+		if (read_only)
+			throw new IOException("Read-only tile pack: " + file);
+		if (channel == null || data.remaining() > MAX_DATA) {
+			if (skip)
+				return true;
+			throw new IOException((channel == null)
+				? "Tile pack closed: " + file
+				: "Tile too large: " + TileKey.toName(k));
+		}
+		int vlen = (v != null) ? v.encodedSize() : 0;
+		int rlen = RECORD_HEADER + vlen + data.remaining();
+		if (length + rlen > max_size)
+			return false;
+		length = append(k, data, v, vlen, length);
+		return true;
+	}
+
+	/** Append a record to the pack file.  The tile data is written
+	 * straight from its buffer, without copying.
+	 * @return Position after the record. */
+	private long append(long k, ByteBuffer data, TileValidator v,
+		int vlen, long pos) throws IOException
+	{
+		ByteBuffer d = data.duplicate();
+		int len = d.remaining();
+		ByteBuffer hdr = ByteBuffer.allocate(RECORD_HEADER + vlen);
+		hdr.position(RECORD_HEADER);
+		if (v != null)
+			v.encode(hdr);
+		hdr.position(RECORD_HEADER);
+		CRC32 c = new CRC32();
+		update(c, hdr);
+		update(c, d);
+		int crc = (int) c.getValue();
+		hdr.clear();
+		hdr.putInt(RECORD_MAGIC);
+		hdr.putLong(k);
+		hdr.putInt(vlen);
+		hdr.putInt(len);
+		hdr.putInt(crc);
+		hdr.clear();
+		long vpos = pos + RECORD_HEADER;
+		while (hdr.hasRemaining())
+			pos += channel.write(hdr, pos);
+		while (d.hasRemaining())
+			pos += channel.write(d, pos);
+		index.put(k, new Entry(vpos, vlen, len, crc, v));
+		return pos;
+	}
+
+	/** Compact the pack, keeping the most recently used tiles.
+	 * @param keep Number of bytes of tile data to keep. */
+	private void compact(long keep) throws IOException {
+		long[] keys = index.keys();
+		int first = keys.length;
+		long total = 0;
+		while (first > 0) {
+			total += index.peek(keys[first - 1]).len;
+			if (total > keep)
+				break;
+			first--;
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		File tmp_idx = indexFile(tmp);
+		// Don't reuse records left by an interrupted compaction
+		if ((tmp.exists() && !tmp.delete()) ||
+		    (tmp_idx.exists() && !tmp_idx.delete()))
+			throw new IOException("Compact failed: " + tmp);
+		TilePack pack = new TilePack(tmp, max_size);
+		try {
+			// Store oldest first, so that recency is preserved
+			for (int i = first; i < keys.length; i++) {
+				byte[] data = lookup(keys[i]);
+				if (data != null) {
+					pack.store(keys[i],
+						ByteBuffer.wrap(data),
+						getValidator(keys[i]));
+				}
+			}
+		}
+		finally {
+			// Writes the index of the compacted pack
+			pack.close();
+		}
+		closeFile();
+		File idx = indexFile(file);
+		if (idx.exists() && !idx.delete())
+			throw new IOException("Compact failed: " + idx);
+		if (!tmp.renameTo(file)) {
+			System.err.println("TilePack: rename failed " + tmp);
+			if (!file.delete() || !tmp.renameTo(file))
+				throw new IOException("Compact failed: " +
+					file);
+		}
+		// Without the index, the pack is scanned when opened
+		if (!tmp_idx.renameTo(idx))
+			tmp_idx.delete();
+		open();
+	}
+
+	/** Close the pack file.  The index of a writable pack is saved, so
+	 * it can be opened without scanning. */
+	public synchronized void close() throws IOException {
+		try {
+			if (channel != null && !read_only)
+				writeIndex();
+		}
+		finally {
+			closeFile();
+		}
+	}
+
+	/** Close the pack file, without saving the index */
+	private void closeFile() throws IOException {
+		index.clear();
+		unmap();
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		if (raf != null) {
+			raf.close();
+			raf = null;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A tile response is the result of fetching a tile from a source.  It has
+ * either image data (a stream or a buffer), or a "not modified" result for
+ * a conditional request, along with the validators of the tile.
+ *
+ * @author Douglas Lau
+ */
+public class TileResponse {
+
+	/** Create a "not modified" response.
+	 * @param v Updated validators of the cached tile. */
+	static public TileResponse notModified(TileValidator v) {
+		return new TileResponse(null, -1, v);
+	}
+
+	/** Stream of image data (null if not modified) */
+	private final InputStream stream;
+
+	/** Length of image data (bytes, -1 if unknown) */
+	private final long length;
+
+	/** Buffer of image data (null for stream) */
+	private final ByteBuffer data;
+
+	/** Validators of tile (may be null) */
+	private final TileValidator validator;
+
+	/** Create a tile response.
+	 * @param is Stream of image data (null if not modified).
+	 * @param len Length of image data (bytes, -1 if unknown).
+	 * @param v Validators of tile (may be null). */
+	public TileResponse(InputStream is, long len, TileValidator v) {
+		stream = is;
+		length = len;
+		data = null;
+		validator = v;
+	}
+
+	/** Create a tile response of unknown length.
+	 * @param is Stream of image data (null if not modified).
+	 * @param v Validators of tile (may be null). */
+	public TileResponse(InputStream is, TileValidator v) {
+		this(is, -1, v);
+	}
+
+	/** Create a tile response from a buffer.
+	 * @param b Buffer of image data (from position to limit).
+	 * @param v Validators of tile (may be null). */
+	public TileResponse(ByteBuffer b, TileValidator v) {
+		stream = null;
+		length = b.remaining();
+		data = b;
+		validator = v;
+	}
+
+	/** Check if the tile was not modified */
+	public boolean isNotModified() {
+		return stream == null && data == null;
+	}
+
+	/** Get the buffer of image data (null for stream) */
+	public ByteBuffer getData() {
+		return data;
+	}
+
+	/** Get the stream of image data (null if not modified, or for a
+	 * buffer) */
+	public InputStream getStream() {
+		return stream;
+	}
+
+	/** Get the length of image data (bytes, -1 if unknown) */
+	public long getLength() {
+		return length;
+	}
+
+	/** Get the validators of the tile (may be null) */
+	public TileValidator getValidator() {
+		return validator;
+	}
+
+	/** Close the response stream */
+	public void close() throws IOException {
+		if (stream != null)
+			stream.close();
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.util.ArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A tile scheduler runs tile requests (fetching or decoding tiles) on a
+ * dedicated thread pool.  Queued requests are ordered by priority, and can
+ * be rescheduled when the map extent changes, which drops requests that
+ * have become stale.
+ *
+ * @author Douglas Lau
+ */
+public class TileScheduler {
+
+	/** Default number of fetch threads */
+	static public final int DEFAULT_THREADS = 4;
+
+	/** Default number of decode threads */
+	static public final int DEFAULT_DECODE_THREADS = Math.max(1, Math.min(
+		4, Runtime.getRuntime().availableProcessors() - 1));
+
+	/** Time to keep idle threads alive (seconds) */
+	static private final long KEEP_ALIVE_SEC = 30;
+
+	/** Scheduler number (for thread names) */
+	static private final AtomicInteger SCHEDULER_NUM = new AtomicInteger();
+
+	/** Sequence counter (for FIFO order of equal priorities) */
+	static private final AtomicLong SEQUENCE = new AtomicLong();
+
+	/** A request for one tile */
+	static abstract public class Request implements Runnable,
+		Comparable<Request>
+	{
+		/** Sequence number */
+		private final long seq = SEQUENCE.incrementAndGet();
+
+		/** Priority (lower values run first) */
+		private double priority;
+
+		/** Update the priority from the current viewport */
+		private void updatePriority() {
+			priority = getPriority();
+		}
+
+		/** Compare with another request */
+		@Override
+		public int compareTo(Request o) {
+			if (priority < o.priority)
+				return -1;
+			if (priority > o.priority)
+				return 1;
+			return (seq < o.seq) ? -1 : ((seq > o.seq) ? 1 : 0);
+		}
+
+		/** Get the current priority (lower values run first) */
+		abstract protected double getPriority();
+
+		/** Check if the request is stale (no longer needed) */
+		abstract protected boolean isStale();
+
+		/** Cancel the request (called when dropped from queue) */
+		abstract protected void cancel();
+	}
+
+	/** Queue of requests */
+	private final PriorityBlockingQueue<Runnable> queue =
+		new PriorityBlockingQueue<Runnable>();
+
+	/** Thread pool executor */
+	private final ThreadPoolExecutor executor;
+
+	/** Create a new tile scheduler.
+	 * @param name Name prefix for threads.
+	 * @param n_threads Number of threads. */
+	public TileScheduler(final String name, int n_threads) {
+		final int snum = SCHEDULER_NUM.incrementAndGet();
+		int n = Math.max(1, n_threads);
+		executor = new ThreadPoolExecutor(n, n, KEEP_ALIVE_SEC,
+			TimeUnit.SECONDS, queue, new ThreadFactory()
+		{
+			private final AtomicInteger tnum = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + snum +
+					"-" + tnum.incrementAndGet());
+				t.setDaemon(true);
+				t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/** Create a new tile fetch scheduler.
+	 * @param n_threads Number of fetch threads. */
+	public TileScheduler(int n_threads) {
+		this("TileFetch", n_threads);
+	}
+
+	/** Get the number of threads */
+	public int getThreads() {
+		return executor.getMaximumPoolSize();
+	}
+
+	/** Get the number of queued requests */
+	public int getQueued() {
+		return queue.size();
+	}
+
+	/** Submit a request */
+	public void submit(Request r) {
+		r.updatePriority();
+		try {
+			executor.execute(r);
+		}
+		catch (RejectedExecutionException e) {
+			r.cancel();
+		}
+	}
+
+	/** Reschedule all queued requests.  Stale requests are dropped and
+	 * cancelled; others are reordered by their current priority. */
+	public void reschedule() {
+		ArrayList<Runnable> reqs = new ArrayList<Runnable>();
+		queue.drainTo(reqs);
+		for (Runnable r: reqs) {
+			Request req = (Request) r;
+			if (req.isStale())
+				req.cancel();
+			else {
+				req.updatePriority();
+				queue.offer(req);
+			}
+		}
+	}
+
+	/** Shut down the scheduler, cancelling all queued requests */
+	public void shutdown() {
+		for (Runnable r: executor.shutdownNow()) {
+			if (r instanceof Request)
+				((Request) r).cancel();
+		}
+	}
+}
@@ -0,0 +1,379 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import us.mn.state.dot.geokit.ZoomLevel;
+
+/**
+ * A tile seeder fetches all tiles within a bounding box and zoom range
+ * from a tile source, and adds them to a tile pack.  Tiles already in the
+ * pack are skipped, so an interrupted seeding can be resumed by running it
+ * again.  The pack can then be used as a PackTileSource, or as the disk
+ * cache of a TileLayer.
+ *
+ * Usage: TileSeeder [-threads n] [-hosts a,b,...] url pack
+ *        x0 y0 x1 y1 zmin zmax
+ *
+ * The bounding box is in user coordinates (as for the map model).
+ *
+ * @author Douglas Lau
+ */
+public class TileSeeder {
+
+	/** Maximum number of retries for a transient failure */
+	static private final int MAX_RETRIES = 2;
+
+	/** Delay before first retry (ms) */
+	static private final long RETRY_MS = 1000;
+
+	/** Interval for progress reports (ms) */
+	static private final long REPORT_MS = 5000;
+
+	/** Maximum number of missing tiles to report by name */
+	static private final int MAX_MISSING_NAMES = 20;
+
+	/** Get the range of tiles covering a bounding box.
+	 * @return Tile range: x0, y0, x1, y1 (Y from bottom). */
+	static private int[] tileRange(ZoomLevel zoom, Rectangle2D b) {
+		int m = zoom.n_tiles - 1;
+		int x0 = (int) (zoom.getPixelX(b.getMinX()) / 256);
+		int y0 = (int) (zoom.getPixelY(b.getMinY()) / 256);
+		int x1 = (int) (zoom.getPixelX(b.getMaxX()) / 256);
+		int y1 = (int) (zoom.getPixelY(b.getMaxY()) / 256);
+		return new int[] {
+			Math.max(0, Math.min(m, x0)),
+			Math.max(0, Math.min(m, y0)),
+			Math.max(0, Math.min(m, x1)),
+			Math.max(0, Math.min(m, y1)),
+		};
+	}
+
+	/** Count the tiles covering a bounding box in a zoom range */
+	static public long countTiles(Rectangle2D b, int z0, int z1) {
+		long n = 0;
+		for (int z = z0; z <= z1; z++) {
+			ZoomLevel zoom = ZoomLevel.fromOrdinal(z);
+			if (zoom != null) {
+				int[] r = tileRange(zoom, b);
+				n += (long) (r[2] - r[0] + 1) *
+					(r[3] - r[1] + 1);
+			}
+		}
+		return n;
+	}
+
+	/** Tile source */
+	private final TileSource source;
+
+	/** Tile pack to fill */
+	private final TilePack pack;
+
+	/** Number of fetch threads */
+	private final int n_threads;
+
+	/** Count of tiles fetched */
+	private final AtomicLong n_fetched = new AtomicLong();
+
+	/** Count of bytes fetched */
+	private final AtomicLong n_bytes = new AtomicLong();
+
+	/** Count of tiles skipped (already in pack) */
+	private final AtomicLong n_skipped = new AtomicLong();
+
+	/** Count of missing tiles */
+	private final AtomicLong n_missing = new AtomicLong();
+
+	/** Count of tiles which failed */
+	private final AtomicLong n_failed = new AtomicLong();
+
+	/** Names of (some) missing tiles */
+	private final List<String> missing = new ArrayList<String>();
+
+	/** Total number of tiles to seed */
+	private long n_total;
+
+	/** Time seeding started (ms) */
+	private long start;
+
+	/** Time of next progress report (ms) */
+	private long report;
+
+	/** Flag set when the pack is full */
+	private volatile boolean full;
+
+	/** Create a new tile seeder.
+	 * @param s Tile source.
+	 * @param p Tile pack to fill.
+	 * @param n Number of fetch threads. */
+	public TileSeeder(TileSource s, TilePack p, int n) {
+		source = s;
+		pack = p;
+		n_threads = Math.max(1, n);
+	}
+
+	/** Seed all tiles within a bounding box and zoom range.  At most
+	 * twice the number of threads are queued at one time.
+	 * @param b Bounding box (user coordinates).
+	 * @param z0 Minimum zoom level ordinal.
+	 * @param z1 Maximum zoom level ordinal.
+	 * @param ps Stream for progress reports (null for none). */
+	public void seed(Rectangle2D b, int z0, int z1, PrintStream ps)
+		throws InterruptedException
+	{
+		n_total = countTiles(b, z0, z1);
+		start = System.currentTimeMillis();
+		report = start + REPORT_MS;
+		ExecutorService pool = Executors.newFixedThreadPool(n_threads);
+		Semaphore permits = new Semaphore(n_threads * 2);
+		try {
+			for (int z = z0; z <= z1 && !full; z++) {
+				ZoomLevel zoom = ZoomLevel.fromOrdinal(z);
+				if (zoom == null)
+					continue;
+				int[] r = tileRange(zoom, b);
+				for (int y = r[3]; y >= r[1] && !full; y--) {
+					int gy = zoom.n_tiles - 1 - y;
+					for (int x = r[0]; x <= r[2]; x++) {
+						long k = TileKey.pack(z, x, gy);
+						queueTile(k, pool, permits);
+						checkProgress(ps);
+					}
+				}
+			}
+			pool.shutdown();
+			while (!pool.awaitTermination(REPORT_MS,
+				TimeUnit.MILLISECONDS))
+			{
+				if (ps != null)
+					printProgress(ps);
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** Queue a task to seed one tile, unless it is already in the pack.
+	 * Waits for a permit, to limit the number of queued tasks. */
+	private void queueTile(long k, ExecutorService pool, Semaphore permits)
+		throws InterruptedException
+	{
+		if (pack.contains(k))
+			n_skipped.incrementAndGet();
+		else {
+			permits.acquire();
+			pool.execute(new SeedTask(k, permits));
+		}
+	}
+
+	/** Task to seed one tile, releasing its permit when done */
+	private class SeedTask implements Runnable {
+		private final long key;
+		private final Semaphore permits;
+		private SeedTask(long k, Semaphore p) {
+			key = k;
+			permits = p;
+		}
+		public void run() {
+			try {
+				seedTile(key);
+			}
+			finally {
+				permits.release();
+			}
+		}
+	}
+
+	/** Print a progress report, if one is due */
+	private void checkProgress(PrintStream ps) {
+		if (ps != null && System.currentTimeMillis() >= report) {
+			printProgress(ps);
+			report += REPORT_MS;
+		}
+	}
+
+	/** Seed one tile, retrying transient failures */
+	private void seedTile(long k) {
+		for (int i = 0; i <= MAX_RETRIES && !full; i++) {
+			try {
+				fetchTile(k);
+				return;
+			}
+			catch (FileNotFoundException e) {
+				n_missing.incrementAndGet();
+				synchronized (missing) {
+					if (missing.size() < MAX_MISSING_NAMES)
+						missing.add(TileKey.toName(k));
+				}
+				return;
+			}
+			catch (InterruptedIOException e) {
+				break;
+			}
+			catch (IOException e) {
+				if (i == MAX_RETRIES) {
+					System.err.println("TileSeeder: " +
+						TileKey.toName(k) + ": " +
+						e.getMessage());
+				} else if (!sleep(RETRY_MS << i))
+					break;
+			}
+		}
+		n_failed.incrementAndGet();
+	}
+
+	/** Sleep before a retry.
+	 * @return false if interrupted. */
+	static private boolean sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+			return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/** Fetch one tile and add it to the pack */
+	private void fetchTile(long k) throws IOException {
+		TileResponse r = source.fetchTile(k, null);
+		try {
+			ByteBuffer data = r.getData();
+			if (data == null) {
+				data = ByteBufferImageInputStream.readFully(
+					r.getStream(), r.getLength());
+			}
+			if (pack.add(k, data, r.getValidator())) {
+				n_fetched.incrementAndGet();
+				n_bytes.addAndGet(data.remaining());
+			} else if (!full) {
+				full = true;
+				System.err.println("TileSeeder: pack full at " +
+					TileKey.toName(k));
+			}
+		}
+		finally {
+			r.close();
+		}
+	}
+
+	/** Print a progress report */
+	private void printProgress(PrintStream ps) {
+		long done = n_fetched.get() + n_skipped.get() +
+			n_missing.get() + n_failed.get();
+		ps.printf("%d of %d tiles (%.1f%%), %.1f tiles/s%n", done,
+			n_total, 100.0 * done / Math.max(1, n_total),
+			perSecond(n_fetched.get()));
+	}
+
+	/** Calculate a rate per second since seeding started */
+	private double perSecond(long n) {
+		long ms = Math.max(1, System.currentTimeMillis() - start);
+		return n * 1000.0 / ms;
+	}
+
+	/** Print a final report */
+	public void printReport(PrintStream ps) {
+		ps.printf("fetched: %d tiles, %d KB (%.1f tiles/s, " +
+			"%.1f KB/s)%n", n_fetched.get(), n_bytes.get() / 1024,
+			perSecond(n_fetched.get()),
+			perSecond(n_bytes.get()) / 1024);
+		ps.println("skipped: " + n_skipped.get() +
+			" (already in pack)");
+		ps.println("missing: " + n_missing.get());
+		synchronized (missing) {
+			for (String n: missing)
+				ps.println("  " + n);
+			if (n_missing.get() > missing.size())
+				ps.println("  ...");
+		}
+		ps.println("failed: " + n_failed.get());
+		if (full)
+			ps.println("pack full: " + pack.length() + " bytes");
+	}
+
+	/** Check if all tiles were seeded (or are missing at the source) */
+	public boolean isComplete() {
+		return !full && n_failed.get() == 0;
+	}
+
+	/** Print usage and exit */
+	static private void usage() {
+		System.err.println("usage: TileSeeder [-threads n] " +
+			"[-hosts a,b,...] url pack x0 y0 x1 y1 zmin zmax");
+		System.exit(2);
+	}
+
+	/** Run the tile seeder */
+	static public void main(String[] args) throws Exception {
+		int n_threads = TileScheduler.DEFAULT_THREADS;
+		String[] hosts = null;
+		int a = 0;
+		while (a < args.length && args[a].startsWith("-")) {
+			if (a + 1 >= args.length)
+				usage();
+			if ("-threads".equals(args[a]))
+				n_threads = Integer.parseInt(args[a + 1]);
+			else if ("-hosts".equals(args[a]))
+				hosts = args[a + 1].split(",");
+			else
+				usage();
+			a += 2;
+		}
+		if (args.length - a != 8)
+			usage();
+		ImageFetcher f = new ImageFetcher(args[a], hosts,
+			new UrlTransport());
+		File file = new File(args[a + 1]);
+		double x0 = Double.parseDouble(args[a + 2]);
+		double y0 = Double.parseDouble(args[a + 3]);
+		double x1 = Double.parseDouble(args[a + 4]);
+		double y1 = Double.parseDouble(args[a + 5]);
+		int z0 = Integer.parseInt(args[a + 6]);
+		int z1 = Integer.parseInt(args[a + 7]);
+		Rectangle2D b = new Rectangle2D.Double(Math.min(x0, x1),
+			Math.min(y0, y1), Math.abs(x1 - x0), Math.abs(y1 - y0));
+		TilePack pack = new TilePack(file, TilePack.MAX_PACK_SIZE);
+		boolean complete;
+		try {
+			TileSeeder seeder = new TileSeeder(f, pack, n_threads);
+			System.out.println("seeding " + countTiles(b, z0, z1) +
+				" tiles into " + file + " (" + pack.size() +
+				" already in pack)");
+			seeder.seed(b, z0, z1, System.out);
+			seeder.printReport(System.out);
+			complete = seeder.isComplete();
+		}
+		finally {
+			pack.close();
+		}
+		System.exit(complete ? 0 : 1);
+	}
+}
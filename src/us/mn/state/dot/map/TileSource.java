@@ -0,0 +1,44 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.io.IOException;
+
+/**
+ * A tile source provides tile images for a tile cache, such as a tile
+ * server (ImageFetcher), a local directory tree, or a tile pack.
+ *
+ * @author Douglas Lau
+ */
+public interface TileSource {
+
+	/** Check if the source may have a tile, without fetching it.
+	 * Remote sources should always return true.
+	 * @param k Tile key. */
+	boolean hasTile(long k);
+
+	/** Get the host which serves a tile, for failure backoff.
+	 * @param k Tile key.
+	 * @return Host name, or null if the tile is local. */
+	String getHost(long k);
+
+	/** Fetch a tile.
+	 * @param k Tile key.
+	 * @param v Validators of cached copy (null for unconditional).
+	 * @return Tile response, with image data unless the cached copy
+	 *         was not modified.
+	 * @throws java.io.FileNotFoundException if the tile is missing. */
+	TileResponse fetchTile(long k, TileValidator v) throws IOException;
+}
@@ -37,7 +37,7 @@ public class TileSymbol implements Symbol {
 		if (mo instanceof TileMapObject) {
 			TileMapObject tmo = (TileMapObject) mo;
 			g.setTransform(tmo.getTransform());
-			g.drawImage(tmo.getImage(), 0, 0, null);
+			tmo.drawImage(g);
 		}
 	}
 
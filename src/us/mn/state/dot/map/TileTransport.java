@@ -0,0 +1,36 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * A tile transport opens streams for fetching tile images.  When the
+ * validators of a cached copy are given, the request is conditional, and
+ * the transport may respond that the tile was not modified.
+ *
+ * @author Douglas Lau
+ */
+public interface TileTransport {
+
+	/** Open a stream to fetch an image.
+	 * @param url URL of image.
+	 * @param v Validators of cached copy (null for unconditional).
+	 * @return Tile response, with a stream of image data unless the
+	 *         cached copy was not modified.
+	 * @throws java.io.FileNotFoundException if the image is missing. */
+	TileResponse open(URL url, TileValidator v) throws IOException;
+}
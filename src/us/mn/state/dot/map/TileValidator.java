@@ -0,0 +1,138 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Tile validators are the HTTP cache validators (ETag and Last-Modified)
+ * of a cached tile, along with the time it was last checked with the
+ * server.  They are used to make conditional requests, so that refreshing
+ * an unchanged tile only costs a "304 Not Modified" response.
+ *
+ * @author Douglas Lau
+ */
+public final class TileValidator {
+
+	/** Charset for encoding entity tags */
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Size of encoded times (checked and last modified) */
+	static private final int TIMES_BYTES = 16;
+
+	/** Maximum length of an encoded entity tag */
+	static private final int MAX_ETAG_BYTES = 1024;
+
+	/** Entity tag (null for none) */
+	private final String etag;
+
+	/** Last modified time (ms, 0 for unknown) */
+	private final long last_modified;
+
+	/** Time last checked with server (ms) */
+	private final long checked;
+
+	/** Create new tile validators.
+	 * @param et Entity tag (null for none).
+	 * @param lm Last modified time (ms, 0 for unknown).
+	 * @param c Time last checked with server (ms). */
+	public TileValidator(String et, long lm, long c) {
+		etag = et;
+		last_modified = Math.max(0, lm);
+		checked = c;
+	}
+
+	/** Get the entity tag (null for none) */
+	public String getETag() {
+		return etag;
+	}
+
+	/** Get the last modified time (ms, 0 for unknown) */
+	public long getLastModified() {
+		return last_modified;
+	}
+
+	/** Get the time last checked with server (ms) */
+	public long getChecked() {
+		return checked;
+	}
+
+	/** Check if a conditional request can be made */
+	public boolean isConditional() {
+		return etag != null || last_modified > 0;
+	}
+
+	/** Check if the validators have expired.
+	 * @param max_age Maximum age since last checked (ms).
+	 * @param now Current time (ms). */
+	public boolean isExpired(long max_age, long now) {
+		return now - checked > max_age;
+	}
+
+	/** Check if a cached copy with other validators is current.
+	 * Entity tags are compared if both have one; otherwise the copy
+	 * is current if it is at least as new as this.
+	 * @param o Validators of cached copy. */
+	public boolean matches(TileValidator o) {
+		if (etag != null && o.etag != null)
+			return etag.equals(o.etag);
+		return last_modified > 0 && last_modified <= o.last_modified;
+	}
+
+	/** Get validators after a "not modified" response.  Values from
+	 * the response replace ours, if present.
+	 * @param et Entity tag from response (null for none).
+	 * @param lm Last modified time from response (0 for none).
+	 * @param c Time checked (ms). */
+	public TileValidator revalidated(String et, long lm, long c) {
+		return new TileValidator((et != null) ? et : etag,
+			(lm > 0) ? lm : last_modified, c);
+	}
+
+	/** Get the number of bytes needed to encode the validators */
+	public int encodedSize() {
+		return TIMES_BYTES + encodeETag().length;
+	}
+
+	/** Encode the entity tag (empty if none or too long) */
+	private byte[] encodeETag() {
+		byte[] et = (etag != null) ? etag.getBytes(UTF8) : new byte[0];
+		return (et.length <= MAX_ETAG_BYTES) ? et : new byte[0];
+	}
+
+	/** Encode the validators into a buffer */
+	public void encode(ByteBuffer b) {
+		b.putLong(checked);
+		b.putLong(last_modified);
+		b.put(encodeETag());
+	}
+
+	/** Decode validators from a buffer.
+	 * @param b Buffer positioned at encoded validators.
+	 * @param len Encoded length (bytes).
+	 * @return Validators, or null if the length is invalid. */
+	static public TileValidator decode(ByteBuffer b, int len) {
+		if (len < TIMES_BYTES || len > TIMES_BYTES + MAX_ETAG_BYTES)
+			return null;
+		long c = b.getLong();
+		long lm = b.getLong();
+		byte[] et = new byte[len - TIMES_BYTES];
+		b.get(et);
+		return new TileValidator((et.length > 0)
+		                         ? new String(et, UTF8)
+		                         : null, lm, c);
+	}
+}
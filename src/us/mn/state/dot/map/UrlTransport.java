@@ -0,0 +1,150 @@
+/*
+ * IRIS -- Intelligent Roadway Information System
+ * Copyright (C) 2016  Minnesota Department of Transportation
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package us.mn.state.dot.map;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * A tile transport using URL connections.  HTTP connections have connect
+ * and read timeouts, and are kept alive for reuse unless disabled.  To be
+ * reused, a connection must be read to the end and closed, so error
+ * responses are drained before throwing.  Conditional requests send
+ * If-None-Match and If-Modified-Since headers from the cached validators.
+ *
+ * @author Douglas Lau
+ */
+public class UrlTransport implements TileTransport {
+
+	/** Default connect timeout (ms) */
+	static public final int CONNECT_TIMEOUT_MS = 5000;
+
+	/** Default read timeout (ms) */
+	static public final int READ_TIMEOUT_MS = 10000;
+
+	/** Connect timeout (ms) */
+	private final int connect_ms;
+
+	/** Read timeout (ms) */
+	private final int read_ms;
+
+	/** Flag to keep connections alive */
+	private final boolean keep_alive;
+
+	/** Create a new URL transport.
+	 * @param c_ms Connect timeout (ms).
+	 * @param r_ms Read timeout (ms).
+	 * @param ka Keep connections alive for reuse. */
+	public UrlTransport(int c_ms, int r_ms, boolean ka) {
+		connect_ms = c_ms;
+		read_ms = r_ms;
+		keep_alive = ka;
+	}
+
+	/** Create a new URL transport with default timeouts */
+	public UrlTransport() {
+		this(CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS, true);
+	}
+
+	/** Open a stream to fetch an image */
+	@Override
+	public TileResponse open(URL url, TileValidator v) throws IOException {
+		URLConnection c = url.openConnection();
+		c.setConnectTimeout(connect_ms);
+		c.setReadTimeout(read_ms);
+		c.setUseCaches(false);
+		if (c instanceof HttpURLConnection)
+			return openHttp((HttpURLConnection) c, v);
+		else {
+			InputStream is = c.getInputStream();
+			return new TileResponse(is, c.getContentLengthLong(),
+				createValidator(c));
+		}
+	}
+
+	/** Open an HTTP connection */
+	private TileResponse openHttp(HttpURLConnection c, TileValidator v)
+		throws IOException
+	{
+		if (!keep_alive)
+			c.setRequestProperty("Connection", "close");
+		if (v != null) {
+			String et = v.getETag();
+			if (et != null)
+				c.setRequestProperty("If-None-Match", et);
+			if (v.getLastModified() > 0)
+				c.setIfModifiedSince(v.getLastModified());
+		}
+		int code = c.getResponseCode();
+		if (code == HttpURLConnection.HTTP_OK) {
+			InputStream is = c.getInputStream();
+			return new TileResponse(is, c.getContentLengthLong(),
+				createValidator(c));
+		}
+		if (code == HttpURLConnection.HTTP_NOT_MODIFIED && v != null) {
+			drainInput(c);
+			return TileResponse.notModified(v.revalidated(
+				c.getHeaderField("ETag"), c.getLastModified(),
+				System.currentTimeMillis()));
+		}
+		drainError(c);
+		if (code == HttpURLConnection.HTTP_NOT_FOUND)
+			throw new FileNotFoundException(c.getURL().toString());
+		throw new IOException("HTTP " + code + ": " + c.getURL());
+	}
+
+	/** Create validators from response headers */
+	static private TileValidator createValidator(URLConnection c) {
+		return new TileValidator(c.getHeaderField("ETag"),
+			c.getLastModified(), System.currentTimeMillis());
+	}
+
+	/** Drain the input stream, so the connection can be reused */
+	static private void drainInput(HttpURLConnection c) {
+		try {
+			drain(c.getInputStream());
+		}
+		catch (IOException e) {
+			// connection will not be reused
+		}
+	}
+
+	/** Drain the error stream, so the connection can be reused */
+	static private void drainError(HttpURLConnection c) {
+		drain(c.getErrorStream());
+	}
+
+	/** Drain and close a stream */
+	static private void drain(InputStream is) {
+		if (is != null) {
+			try {
+				try {
+					byte[] buf = new byte[1024];
+					while (is.read(buf) >= 0);
+				}
+				finally {
+					is.close();
+				}
+			}
+			catch (IOException e) {
+				// connection will not be reused
+			}
+		}
+	}
+}